@@ -0,0 +1,95 @@
+package com.dledmonds.slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full crawl by SlackEngine, over HTTP, of a synthetic workspace served by MockSlackServer: users, channels, every
+ * history page and (optionally) every thread's replies, into the console runner's count processor. The engine's
+ * rate limits are scaled right up so the figure is the engine and HTTP stack rather than Slack's tiers, add latency
+ * to see how well the fetch threads and history prefetch overlap calls.
+ *
+ * @author dledmonds
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineCrawlBenchmark {
+
+    @Param({"1", "4"})
+    public int fetchThreads;
+
+    @Param({"0", "2"})
+    public int prefetchPages;
+
+    @Param({"0", "5"})
+    public long latencyMillis;
+
+    @Param({"false", "true"})
+    public boolean replies;
+
+    @Param({"100000"})
+    public int messages;
+
+    @Param({"200"})
+    public int pageSize;
+
+    private MockSlackServer server;
+    private PrintStream out;
+
+    @Setup
+    public void start() throws IOException {
+        server = new MockSlackServer(new SyntheticWorkspace(2000, 200, messages, 1.1, 42), 0, 20, 42);
+        server.setPageSize(pageSize);
+        server.setLatency(latencyMillis, latencyMillis);
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() { // the engine's per page progress lines
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void stop() {
+        System.setOut(out);
+        server.close();
+    }
+
+    @Benchmark
+    public SlackEngine crawl() {
+        SlackEngine engine = new SlackEngine("xoxb-benchmark");
+        engine.setApiUrl(server.getUrl());
+        engine.setRateLimitScale(1000000);
+        engine.setFetchThreads(fetchThreads);
+        engine.setPrefetchPages(prefetchPages);
+        engine.setPageLimit(pageSize);
+        engine.setThreadReplies(replies);
+        UserMessageCountProcessor count = new UserMessageCountProcessor(10);
+        engine.addUserProcessor(count);
+        engine.addChannelProcessor(count);
+        engine.addMessageProcessor(count);
+        engine.run();
+        if (engine.getFailure() != null) throw new IllegalStateException(engine.getFailure());
+        return engine;
+    }
+
+}
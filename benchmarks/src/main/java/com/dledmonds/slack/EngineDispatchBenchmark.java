@@ -0,0 +1,65 @@
+package com.dledmonds.slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole synthetic workspace replayed through SlackEngine into the console runner's count processors, so the
+ * figure includes the engine's locking and, with more than one dispatch thread, the partitioned hand-off and merge.
+ *
+ * @author dledmonds
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineDispatchBenchmark {
+
+    @Param({"1", "4"})
+    public int dispatchThreads;
+
+    @Param({"100000"})
+    public int messages;
+
+    private SyntheticWorkspace workspace;
+
+    @Setup
+    public void generate() {
+        workspace = new SyntheticWorkspace(2000, 200, messages, 1.1, 42);
+    }
+
+    @Benchmark
+    public SlackEngine replay() {
+        SlackEngine engine = new SlackEngine(null);
+        engine.setDispatchThreads(dispatchThreads);
+        UserMessageCountProcessor count = new UserMessageCountProcessor(10);
+        UserHereOrChannelMessageCountProcessor hereOrChannel = new UserHereOrChannelMessageCountProcessor(10);
+        UserMessageCountPerDayProcessor perDay = new UserMessageCountPerDayProcessor(10, ZoneId.of("UTC"));
+        for (UserMessageCountProcessor p : new UserMessageCountProcessor[] {count, hereOrChannel}) {
+            engine.addUserProcessor(p);
+            engine.addChannelProcessor(p);
+            engine.addMessageProcessor(p);
+        }
+        engine.addUserProcessor(perDay);
+        engine.addChannelProcessor(perDay);
+        engine.addMessageProcessor(perDay);
+        engine.replay(workspace);
+        if (engine.getFailure() != null) throw new IllegalStateException(engine.getFailure());
+        return engine;
+    }
+
+}
@@ -0,0 +1,368 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.methods.SlackApiResponse;
+import com.github.seratch.jslack.api.methods.response.conversations.ConversationsHistoryResponse;
+import com.github.seratch.jslack.api.methods.response.conversations.ConversationsInfoResponse;
+import com.github.seratch.jslack.api.methods.response.conversations.ConversationsListResponse;
+import com.github.seratch.jslack.api.methods.response.conversations.ConversationsRepliesResponse;
+import com.github.seratch.jslack.api.methods.response.users.UsersInfoResponse;
+import com.github.seratch.jslack.api.methods.response.users.UsersListResponse;
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.ResponseMetadata;
+import com.github.seratch.jslack.api.model.User;
+import com.github.seratch.jslack.common.json.GsonFactory;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Local stand-in for the parts of the Slack Web API that SlackEngine calls, serving a SyntheticWorkspace so full
+ * crawls can be run and measured offline at any size. users.list, conversations.list, conversations.history and
+ * conversations.replies page with opaque cursors like Slack's, history honours oldest and latest, and a share of
+ * messages are made thread parents with generated replies. Latency, page size and HTTP 429 responses (with a
+ * Retry-After header) can be injected to check the engine's cursor and rate limit handling.
+ *
+ * Point the engine at it with SlackEngine.setApiUrl(getUrl()), or run main() and set slack.api.url.
+ *
+ * @author dledmonds
+ */
+public class MockSlackServer implements Closeable {
+
+    private static final int MAX_PAGE_SIZE = 1000; // Slack's own cap on limit
+
+    static {
+        // without it the end of each response waits out the client's delayed ACK, about 40ms a call
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final Gson gson = GsonFactory.createSnakeCase();
+    private final List<User> users;
+    private final List<Conversation> channels;
+    private final Map<String, User> usersById = new HashMap<>();
+    private final Map<String, Conversation> channelsById = new HashMap<>();
+    private final Map<String, List<Message>> history = new HashMap<>(); // by channel, newest first like Slack
+    private final Map<String, List<Message>> threads = new HashMap<>(); // by channel and parent ts, parent first then oldest first
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final LongAdder rateLimited = new LongAdder();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile int pageSize = 100;
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double rateLimitProbability;
+    private volatile int retryAfterSeconds = 1;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param threadEvery roughly one message in this many is made a thread parent with 1 to 10 replies, 0 for none
+     * @param seed seeds which messages start threads and what the replies are
+     */
+    public MockSlackServer(SyntheticWorkspace workspace, int port, int threadEvery, long seed) throws IOException {
+        this.users = workspace.getUsers();
+        this.channels = workspace.getChannels();
+        for (User user : users) usersById.put(user.getId(), user);
+        for (Conversation channel : channels) {
+            channelsById.put(channel.getId(), channel);
+            history.put(channel.getId(), new ArrayList<>());
+        }
+
+        Random random = new Random(seed);
+        List<Message> messages = workspace.getMessages();
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            if (threadEvery > 0 && random.nextInt(threadEvery) == 0) {
+                message = startThread(workspace.channelOf(i), message, random);
+            }
+            history.get(workspace.channelOf(i)).add(message);
+        }
+        for (List<Message> channelMessages : history.values()) {
+            Collections.reverse(channelMessages);
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "mock-slack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor); // so injected latency doesn't hold up other requests
+        server.createContext("/api/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return a copy of the workspace message as a thread parent, its replies are kept for conversations.replies
+     */
+    private Message startThread(String channel, Message message, Random random) {
+        long micros = SlackTs.parseMicros(message.getTs());
+        List<Message> thread = new ArrayList<>();
+        Message parent = new Message();
+        parent.setType(message.getType());
+        parent.setUser(message.getUser());
+        parent.setText(message.getText());
+        parent.setTs(message.getTs());
+        parent.setThreadTs(message.getTs());
+        thread.add(parent);
+        int replies = 1 + random.nextInt(10);
+        for (int r = 0; r < replies; r++) {
+            micros += 1 + random.nextInt(600000000); // up to 10 minutes apart
+            Message reply = new Message();
+            reply.setType("message");
+            reply.setUser(users.get(random.nextInt(users.size())).getId());
+            reply.setText("reply " + (r + 1));
+            reply.setTs(SlackTs.format(micros));
+            reply.setThreadTs(parent.getTs());
+            thread.add(reply);
+        }
+        parent.setReplyCount(replies);
+        parent.setLatestReply(thread.get(replies).getTs());
+        threads.put(channel + "/" + parent.getTs(), thread);
+        return parent;
+    }
+
+    /**
+     * Users, channels or messages per page when the request doesn't ask for fewer. Defaults to 100, as Slack does
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = Math.min(MAX_PAGE_SIZE, pageSize);
+    }
+
+    /**
+     * Delay before each response, plus up to jitterMillis more picked at random.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+    }
+
+    /**
+     * Share of requests, 0 to 1, answered with HTTP 429 and a Retry-After header instead of data.
+     */
+    public void setRateLimiting(double probability, int retryAfterSeconds) {
+        this.rateLimitProbability = probability;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @return base URL to give SlackEngine.setApiUrl
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    /**
+     * @return requests made to the method, including any answered with a 429
+     */
+    public long getCalls(String method) {
+        LongAdder count = calls.get(method);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestURI().getPath().substring("/api/".length());
+            calls.computeIfAbsent(method, m -> new LongAdder()).increment();
+            Map<String, String> params = params(exchange);
+
+            long delay = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+            if (delay > 0) Thread.sleep(delay);
+            if (rateLimitProbability > 0 && ThreadLocalRandom.current().nextDouble() < rateLimitProbability) {
+                rateLimited.increment();
+                exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+                respond(exchange, 429, "{\"ok\":false,\"error\":\"ratelimited\"}");
+                return;
+            }
+            respond(exchange, 200, gson.toJson(call(method, params)));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (RuntimeException re) {
+            re.printStackTrace(System.err);
+            respond(exchange, 500, "{\"ok\":false,\"error\":\"internal_error\"}");
+        }
+    }
+
+    private Object call(String method, Map<String, String> params) {
+        switch (method) {
+            case "users.list": {
+                UsersListResponse response = new UsersListResponse();
+                response.setMembers(page(users, params, response::setResponseMetadata));
+                return ok(response);
+            }
+            case "users.info": {
+                UsersInfoResponse response = new UsersInfoResponse();
+                response.setUser(usersById.get(params.get("user")));
+                return response.getUser() == null ? error(response, "user_not_found") : ok(response);
+            }
+            case "conversations.list": {
+                ConversationsListResponse response = new ConversationsListResponse();
+                response.setChannels(page(channels, params, response::setResponseMetadata));
+                return ok(response);
+            }
+            case "conversations.info": {
+                ConversationsInfoResponse response = new ConversationsInfoResponse();
+                response.setChannel(channelsById.get(params.get("channel")));
+                return response.getChannel() == null ? error(response, "channel_not_found") : ok(response);
+            }
+            case "conversations.history": {
+                ConversationsHistoryResponse response = new ConversationsHistoryResponse();
+                List<Message> messages = history.get(params.get("channel"));
+                if (messages == null) return error(response, "channel_not_found");
+                List<Message> page = page(between(messages, params.get("oldest"), params.get("latest")), params,
+                        response::setResponseMetadata);
+                response.setMessages(page);
+                response.setHasMore(!response.getResponseMetadata().getNextCursor().isEmpty());
+                return ok(response);
+            }
+            case "conversations.replies": {
+                ConversationsRepliesResponse response = new ConversationsRepliesResponse();
+                List<Message> thread = threads.get(params.get("channel") + "/" + params.get("ts"));
+                if (thread == null) return error(response, "thread_not_found");
+                // like Slack the parent is always first, whatever the bounds
+                List<Message> replies = new ArrayList<>();
+                replies.add(thread.get(0));
+                List<Message> after = between(thread.subList(1, thread.size()), params.get("oldest"), params.get("latest"));
+                List<Message> page = page(after, params, response::setResponseMetadata);
+                replies.addAll(page);
+                response.setMessages(replies);
+                response.setHasMore(!response.getResponseMetadata().getNextCursor().isEmpty());
+                return ok(response);
+            }
+            default:
+                return Collections.singletonMap("ok", false); // Slack answers unknown_method, the engine never asks
+        }
+    }
+
+    /**
+     * @return the messages with ts strictly between oldest and latest, either may be null or empty for no bound
+     */
+    private static List<Message> between(List<Message> messages, String oldest, String latest) {
+        if ((oldest == null || oldest.isEmpty()) && (latest == null || latest.isEmpty())) return messages;
+        List<Message> found = new ArrayList<>();
+        for (Message message : messages) {
+            if (oldest != null && !oldest.isEmpty() && SlackTs.compare(message.getTs(), oldest) <= 0) continue;
+            if (latest != null && !latest.isEmpty() && SlackTs.compare(message.getTs(), latest) >= 0) continue;
+            found.add(message);
+        }
+        return found;
+    }
+
+    /**
+     * @return the page the request's cursor and limit point at, setting the response's next cursor
+     */
+    private <T> List<T> page(List<T> all, Map<String, String> params, Consumer<ResponseMetadata> setMetadata) {
+        int from = 0;
+        String cursor = params.get("cursor");
+        if (cursor != null && !cursor.isEmpty()) {
+            String decoded = new String(Base64.getDecoder().decode(cursor), StandardCharsets.UTF_8);
+            from = Integer.parseInt(decoded.substring("offset:".length()));
+        }
+        int limit = pageSize;
+        if (params.get("limit") != null) limit = Math.max(1, Math.min(limit, Integer.parseInt(params.get("limit"))));
+        int to = Math.min(all.size(), from + limit);
+
+        ResponseMetadata metadata = new ResponseMetadata();
+        metadata.setNextCursor(to < all.size()
+                ? Base64.getEncoder().encodeToString(("offset:" + to).getBytes(StandardCharsets.UTF_8)) : "");
+        setMetadata.accept(metadata);
+        return new ArrayList<>(all.subList(Math.min(from, to), to));
+    }
+
+    private static SlackApiResponse ok(SlackApiResponse response) {
+        response.setOk(true);
+        return response;
+    }
+
+    private static SlackApiResponse error(SlackApiResponse response, String error) {
+        response.setOk(false);
+        response.setError(error);
+        return response;
+    }
+
+    /**
+     * @return the query string and form body parameters, the body winning
+     */
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                body.write(buffer, 0, read);
+            }
+        }
+        parse(new String(body.toByteArray(), StandardCharsets.UTF_8), params);
+        return params;
+    }
+
+    private static void parse(String encoded, Map<String, String> params) throws IOException {
+        if (encoded == null || encoded.isEmpty()) return;
+        for (String pair : encoded.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            params.put(name, eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Serves a workspace until killed. Arguments: port users channels messages [threadEvery [seed]]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        int userCount = Integer.parseInt(args[1]);
+        int channelCount = Integer.parseInt(args[2]);
+        int messageCount = Integer.parseInt(args[3]);
+        int threadEvery = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+        MockSlackServer server = new MockSlackServer(
+                new SyntheticWorkspace(userCount, channelCount, messageCount, 1.1, seed), port, threadEvery, seed);
+        System.out.println("Serving " + messageCount + " messages in " + channelCount + " channels at " + server.getUrl());
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per message cost of N keyword counts by channel and user, computed by one PipelineProcessor (fused) or by N
+ * PatternMessageCountProcessors, a pipeline each, sharing a matcher and user registry (separate), the way
+ * ConsoleRunner used to count them.
+ *
+ * @author dledmonds
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    static final int MESSAGES = 100000;
+    static final String[] KEYWORDS = {"build", "deploy", "error", "review", "rollback", "ticket", "meeting", "lunch",
+            "merged", "thanks"};
+
+    @Param({"fused", "separate"})
+    public String mode;
+
+    @Param({"1", "4", "10"})
+    public int statistics;
+
+    private SyntheticWorkspace workspace;
+    private List<MessageProcessor> targets;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        workspace = new SyntheticWorkspace(2000, 200, MESSAGES, 1.1, 42);
+    }
+
+    @Setup(Level.Iteration)
+    public void createProcessors() {
+        UserRegistry users = new UserRegistry();
+        MessageMatcher matcher = new MessageMatcher();
+        targets = new ArrayList<>();
+        if (mode.equals("fused")) {
+            PipelineConfig config = new PipelineConfig();
+            for (int i = 0; i < statistics; i++) {
+                config.add(PipelineConfig.Statistic.userCount(KEYWORDS[i], KEYWORDS[i], 10, KEYWORDS[i]));
+            }
+            targets.add(new PipelineProcessor(config, users, ZoneId.of("UTC"), matcher));
+        } else {
+            for (int i = 0; i < statistics; i++) {
+                targets.add(new PatternMessageCountProcessor(10, KEYWORDS[i], users, matcher, KEYWORDS[i]));
+            }
+        }
+        for (MessageProcessor target : targets) {
+            workspace.prime(target);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void seenMessage() {
+        List<Message> messages = workspace.getMessages();
+        for (int i = 0; i < messages.size(); i++) {
+            String channel = workspace.channelOf(i);
+            Message message = messages.get(i);
+            for (int t = 0; t < targets.size(); t++) {
+                targets.get(t).seenMessage(channel, message);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * seenMessage throughput of each processor over a synthetic workspace, reported per message. Run with -prof gc
+ * for the allocation rate. The stream processor's figure includes its writer thread draining the queue.
+ *
+ * @author dledmonds
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessorBenchmark {
+
+    static final int MESSAGES = 100000;
+
+    @Param({"count", "hereOrChannel", "perDay", "stream"})
+    public String processor;
+
+    @Param({"2000"})
+    public int users;
+
+    @Param({"200"})
+    public int channels;
+
+    private SyntheticWorkspace workspace;
+    private MessageProcessor target;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        workspace = new SyntheticWorkspace(users, channels, MESSAGES, 1.1, 42);
+    }
+
+    @Setup(Level.Iteration)
+    public void createProcessor() {
+        target = create(processor);
+        workspace.prime(target);
+    }
+
+    static MessageProcessor create(String name) {
+        switch (name) {
+            case "count": return new UserMessageCountProcessor(10);
+            case "hereOrChannel": return new UserHereOrChannelMessageCountProcessor(10);
+            case "perDay": return new UserMessageCountPerDayProcessor(10, ZoneId.of("UTC"));
+            case "stream": return new StreamOutputProcessor(new NullOutputStream());
+            default: throw new IllegalArgumentException("Unknown processor " + name);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeProcessor() throws IOException {
+        if (target instanceof Closeable) ((Closeable)target).close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void seenMessage() {
+        List<Message> messages = workspace.getMessages();
+        for (int i = 0; i < messages.size(); i++) {
+            target.seenMessage(workspace.channelOf(i), messages.get(i));
+        }
+    }
+
+    /**
+     * Discards everything, so output benchmarks measure formatting rather than the disk.
+     */
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report generation: outputResults ranking and printing for the count processors after a full synthetic
+ * workspace, and the per-message formatting done by StreamOutputProcessor's writer thread in each output format.
+ *
+ * @author dledmonds
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReportBenchmark {
+
+    @Param({"20000"})
+    public int users;
+
+    @Param({"500"})
+    public int channels;
+
+    private final PrintStream out = new PrintStream(new ProcessorBenchmark.NullOutputStream());
+    private SyntheticWorkspace workspace;
+    private UserMessageCountProcessor count;
+    private UserMessageCountPerDayProcessor perDay;
+    private final StringBuilder line = new StringBuilder();
+    private final OutputFormat[] formats = {OutputFormat.forName("text", ZoneId.of("UTC")),
+            OutputFormat.forName("ndjson", ZoneId.of("UTC")), OutputFormat.forName("csv", ZoneId.of("UTC"))};
+    private int next;
+
+    @Setup
+    public void setup() {
+        workspace = new SyntheticWorkspace(users, channels, 500000, 1.1, 42);
+        count = new UserMessageCountProcessor(10);
+        perDay = new UserMessageCountPerDayProcessor(10, ZoneId.of("UTC"));
+        workspace.prime(count);
+        workspace.prime(perDay);
+        List<Message> messages = workspace.getMessages();
+        for (int i = 0; i < messages.size(); i++) {
+            count.seenMessage(workspace.channelOf(i), messages.get(i));
+            perDay.seenMessage(workspace.channelOf(i), messages.get(i));
+        }
+    }
+
+    @Benchmark
+    public void countOutputResults() throws IOException {
+        count.outputResults(out);
+    }
+
+    @Benchmark
+    public void perDayOutputResults() throws IOException {
+        perDay.outputResults(out);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int formatText() {
+        return formatMessage(formats[0]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int formatNdjson() {
+        return formatMessage(formats[1]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int formatCsv() {
+        return formatMessage(formats[2]);
+    }
+
+    private int formatMessage(OutputFormat format) {
+        int i = next;
+        next = (next + 1) % workspace.getMessages().size();
+        line.setLength(0);
+        format.message(workspace.channelOf(i), workspace.getMessages().get(i), line);
+        return line.length();
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.dledmonds.slack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SlackTs/TimeBuckets against the Double.parseDouble and java.util.Date handling they replaced.
+ *
+ * @author dledmonds
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SlackTsBenchmark {
+
+    private static final int SIZE = 1024;
+
+    private final String[] timestamps = new String[SIZE];
+    private final long[] micros = new long[SIZE];
+    private TimeBuckets timeBuckets;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            long seconds = 1400000000L + random.nextInt(200000000);
+            timestamps[i] = seconds + "." + String.format("%06d", random.nextInt(1000000));
+            micros[i] = SlackTs.parseMicros(timestamps[i]);
+        }
+        timeBuckets = new TimeBuckets(ZoneId.of("Europe/London"));
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Date legacyConvertTsToDate() {
+        double ts = Double.parseDouble(timestamps[nextIndex()]);
+        return new Date((long)(Math.floor(ts) * 1000));
+    }
+
+    @Benchmark
+    public long parseMicros() {
+        return SlackTs.parseMicros(timestamps[nextIndex()]);
+    }
+
+    @Benchmark
+    public int legacyCompare() {
+        int i = nextIndex();
+        return timestamps[i].compareTo(timestamps[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public int compareMicros() {
+        int i = nextIndex();
+        return SlackTs.compare(timestamps[i], timestamps[(i + 1) & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public long legacyDaysBetween() {
+        // what UserMessageCountPerDayProcessor used to do per message and again at output
+        double ts = Double.parseDouble(timestamps[nextIndex()]);
+        Date date = new Date((long)(Math.floor(ts) * 1000));
+        return TimeUnit.DAYS.convert(System.currentTimeMillis() - date.getTime(), TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public long dayBucket() {
+        return timeBuckets.day(SlackTs.parseMicros(timestamps[nextIndex()]));
+    }
+
+    @Benchmark
+    public void allBuckets(Blackhole bh) {
+        long m = micros[nextIndex()];
+        bh.consume(timeBuckets.day(m));
+        bh.consume(timeBuckets.week(m));
+        bh.consume(timeBuckets.hour(m));
+    }
+
+}
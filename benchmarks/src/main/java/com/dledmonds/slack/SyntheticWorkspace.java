@@ -0,0 +1,151 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated users, channels and messages for benchmarks. Both who posts and where follow a Zipf distribution, so a
+ * handful of users and channels account for most of the traffic like in a real workspace. The same seed always
+ * gives the same workspace.
+ *
+ * @author dledmonds
+ */
+public class SyntheticWorkspace implements MessageSource {
+
+    private static final long START_SECONDS = 1483228800L; // 2017-01-01T00:00:00Z
+    private static final int BATCH_SIZE = 1000;
+
+    private final List<User> users = new ArrayList<>();
+    private final List<Conversation> channels = new ArrayList<>();
+    private final List<List<Message>> channelMessages = new ArrayList<>(); // indexed like channels, oldest first
+    private final List<String> messageChannels = new ArrayList<>(); // channel of each message in messages
+    private final List<Message> messages = new ArrayList<>(); // every message, in generation order
+
+    public SyntheticWorkspace(int userCount, int channelCount, int messageCount, double skew, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < userCount; i++) {
+            User user = new User();
+            user.setId(String.format("U%08d", i));
+            user.setName("user" + i);
+            user.setRealName("User " + i);
+            user.setDeleted(false);
+            user.setBot(i % 50 == 49);
+            users.add(user);
+        }
+        for (int i = 0; i < channelCount; i++) {
+            channels.add(Conversation.builder()
+                    .id(String.format("C%08d", i))
+                    .name("channel-" + i)
+                    .isChannel(true)
+                    .isArchived(false)
+                    .numOfMembers(1 + random.nextInt(userCount))
+                    .build());
+            channelMessages.add(new ArrayList<>());
+        }
+
+        Zipf userRank = new Zipf(userCount, skew);
+        Zipf channelRank = new Zipf(channelCount, skew);
+        long seconds = START_SECONDS;
+        for (int i = 0; i < messageCount; i++) {
+            seconds += random.nextInt(120);
+            int channel = channelRank.sample(random);
+            Message message = new Message();
+            message.setType("message");
+            message.setUser(users.get(userRank.sample(random)).getId());
+            message.setTs(SlackTs.format(seconds * 1000000 + random.nextInt(1000000)));
+            message.setText(text(random));
+            channelMessages.get(channel).add(message);
+            messageChannels.add(channels.get(channel).getId());
+            messages.add(message);
+        }
+    }
+
+    private static String text(Random random) {
+        int roll = random.nextInt(100);
+        if (roll < 3) return "<!here> can someone take a look at the build";
+        if (roll < 5) return "<!channel> deploy starting in 5 minutes";
+        StringBuilder sb = new StringBuilder();
+        int words = 3 + random.nextInt(25);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static final String[] WORDS = {"the", "build", "is", "green", "again", "anyone", "seen", "this", "error",
+            "lunch", "today", "merged", "review", "please", "thanks", "deploy", "rollback", "ticket", "meeting", "ok"};
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public List<Conversation> getChannels() {
+        return channels;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public String channelOf(int message) {
+        return messageChannels.get(message);
+    }
+
+    /**
+     * Registers the workspace's users and channels with a processor, the way the engine would before any messages.
+     */
+    public void prime(Object processor) {
+        if (processor instanceof UserProcessor) {
+            for (User user : users) ((UserProcessor)processor).seenUser(user);
+        }
+        if (processor instanceof ChannelProcessor) {
+            for (Conversation channel : channels) ((ChannelProcessor)processor).seenChannel(channel);
+        }
+    }
+
+    @Override
+    public void replay(SlackEngine engine) {
+        engine.fireUsers(users);
+        for (int i = 0; i < channels.size(); i++) {
+            engine.fireChannel(channels.get(i));
+            List<Message> all = channelMessages.get(i);
+            for (int from = 0; from < all.size(); from += BATCH_SIZE) {
+                // fresh list per batch, the dispatcher owns it once handed over
+                engine.fireMessages(channels.get(i).getId(),
+                        new ArrayList<>(all.subList(from, Math.min(all.size(), from + BATCH_SIZE))));
+            }
+        }
+    }
+
+    /**
+     * Rank sampler where rank r is picked with probability proportional to 1 / (r + 1)^skew.
+     */
+    private static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int size, double skew) {
+            cumulative = new double[size];
+            double total = 0;
+            for (int i = 0; i < size; i++) {
+                total += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < size; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        int sample(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, index >= 0 ? index : -index - 1);
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.dledmonds.slack;
+
+import java.io.IOException;
+
+/**
+ * Processors whose aggregates can be written to a ColumnarWriter, straight from their own state.
+ *
+ * @author dledmonds
+ */
+public interface ColumnarExportable {
+
+    /**
+     * @param name name of the table, or prefix for the tables, the processor writes
+     */
+    void exportColumns(ColumnarWriter writer, String name) throws IOException;
+
+}
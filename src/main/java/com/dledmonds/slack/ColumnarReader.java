@@ -0,0 +1,236 @@
+package com.dledmonds.slack;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads files written by ColumnarWriter. Only the footer is read up front, each column is read and decoded when asked
+ * for. Run on its own it prints a file as CSV.
+ *
+ * @author dledmonds
+ */
+public class ColumnarReader {
+
+    private final File file;
+    private final Map<String, TableInfo> tables = new LinkedHashMap<>();
+    private final String[] userIds;
+    private final String[] userNames;
+    private final String[] userRealNames;
+    private final String[] channelIds;
+    private final String[] channelNames;
+
+    /**
+     * Prints the tables of a file written by ColumnarWriter as CSV, users and channels as their ids and days as
+     * dates. Arguments: FILE [TABLE], every table if none is given.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ColumnarReader FILE [TABLE]");
+            System.exit(1);
+        }
+        ColumnarReader reader = new ColumnarReader(new File(args[0]));
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 65536), false, "UTF-8");
+        for (String table : reader.tables()) {
+            if (args.length < 2 || args[1].equals(table)) reader.writeCsv(table, out);
+        }
+        out.flush();
+    }
+
+    ColumnarReader(File file) throws IOException {
+        this.file = file;
+        byte[] magic = new byte[ColumnarWriter.MAGIC.length];
+        byte[] footerBytes;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, ColumnarWriter.MAGIC)) throw new IOException(file + " is not a columnar export");
+            raf.seek(raf.length() - magic.length - 4);
+            int footerLength = raf.readInt();
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, ColumnarWriter.MAGIC)) throw new IOException(file + " is incomplete");
+            footerBytes = new byte[footerLength];
+            raf.seek(raf.length() - magic.length - 4 - footerLength);
+            raf.readFully(footerBytes);
+        }
+
+        DataInputStream footer = new DataInputStream(new ByteArrayInputStream(footerBytes));
+        int tableCount = footer.readInt();
+        for (int t = 0; t < tableCount; t++) {
+            TableInfo table = new TableInfo();
+            String name = footer.readUTF();
+            int columns = footer.readInt();
+            table.columnNames = new String[columns];
+            table.types = new ColumnarWriter.Type[columns];
+            for (int c = 0; c < columns; c++) {
+                table.columnNames[c] = footer.readUTF();
+                table.types[c] = ColumnarWriter.Type.values()[footer.readByte()];
+            }
+            int groups = footer.readInt();
+            table.groupRows = new int[groups];
+            table.offsets = new long[groups][columns];
+            table.lengths = new int[groups][columns];
+            for (int g = 0; g < groups; g++) {
+                table.groupRows[g] = footer.readInt();
+                table.rows += table.groupRows[g];
+                for (int c = 0; c < columns; c++) {
+                    table.offsets[g][c] = footer.readLong();
+                    table.lengths[g][c] = footer.readInt();
+                }
+            }
+            tables.put(name, table);
+        }
+        int users = footer.readInt();
+        userIds = new String[users];
+        userNames = new String[users];
+        userRealNames = new String[users];
+        for (int u = 0; u < users; u++) {
+            userIds[u] = footer.readUTF();
+            userNames[u] = footer.readUTF();
+            userRealNames[u] = footer.readUTF();
+        }
+        int channels = footer.readInt();
+        channelIds = new String[channels];
+        channelNames = new String[channels];
+        for (int c = 0; c < channels; c++) {
+            channelIds[c] = footer.readUTF();
+            channelNames[c] = footer.readUTF();
+        }
+    }
+
+    Iterable<String> tables() {
+        return tables.keySet();
+    }
+
+    long rows(String table) {
+        return table(table).rows;
+    }
+
+    /**
+     * @return every value in the column, user and channel columns hold dictionary indexes
+     */
+    long[] column(String table, String column) throws IOException {
+        TableInfo info = table(table);
+        int c = Arrays.asList(info.columnNames).indexOf(column);
+        if (c < 0) throw new IllegalArgumentException("No column " + column + " in " + table);
+        long[] values = new long[(int)info.rows];
+        int row = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int g = 0; g < info.groupRows.length; g++) {
+                byte[] chunk = new byte[info.lengths[g][c]];
+                raf.seek(info.offsets[g][c]);
+                raf.readFully(chunk);
+                decode(info.types[c], chunk, values, row, info.groupRows[g]);
+                row += info.groupRows[g];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes the table's name, its column names and then its rows.
+     */
+    void writeCsv(String table, PrintStream out) throws IOException {
+        TableInfo info = table(table);
+        long[][] columns = new long[info.columnNames.length][];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = column(table, info.columnNames[c]);
+        }
+        out.println("# " + table);
+        out.println(String.join(",", info.columnNames));
+        StringBuilder line = new StringBuilder();
+        for (int row = 0; row < info.rows; row++) {
+            line.setLength(0);
+            for (int c = 0; c < columns.length; c++) {
+                if (c > 0) line.append(',');
+                long value = columns[c][row];
+                switch (info.types[c]) {
+                    case USER: line.append(userIds[(int)value]); break;
+                    case CHANNEL: line.append(channelIds[(int)value]); break;
+                    case DAY: line.append(LocalDate.ofEpochDay(value)); break;
+                    default: line.append(value);
+                }
+            }
+            out.println(line);
+        }
+    }
+
+    String userId(int user) {
+        return userIds[user];
+    }
+
+    String userName(int user) {
+        return userNames[user];
+    }
+
+    String userRealName(int user) {
+        return userRealNames[user];
+    }
+
+    String channelId(int channel) {
+        return channelIds[channel];
+    }
+
+    String channelName(int channel) {
+        return channelNames[channel];
+    }
+
+    private TableInfo table(String table) {
+        TableInfo info = tables.get(table);
+        if (info == null) throw new IllegalArgumentException("No table " + table);
+        return info;
+    }
+
+    private static void decode(ColumnarWriter.Type type, byte[] chunk, long[] values, int from, int rows) {
+        int[] pos = new int[1];
+        if (type == ColumnarWriter.Type.CHANNEL) {
+            int row = from;
+            while (row < from + rows) {
+                long value = varint(chunk, pos);
+                long run = varint(chunk, pos);
+                Arrays.fill(values, row, row + (int)run, value);
+                row += run;
+            }
+        } else if (type == ColumnarWriter.Type.DAY) {
+            long previous = 0;
+            for (int row = from; row < from + rows; row++) {
+                long zigzag = varint(chunk, pos);
+                previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                values[row] = previous;
+            }
+        } else {
+            for (int row = from; row < from + rows; row++) {
+                values[row] = varint(chunk, pos);
+            }
+        }
+    }
+
+    private static long varint(byte[] chunk, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = chunk[pos[0]++];
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static class TableInfo {
+        private String[] columnNames;
+        private ColumnarWriter.Type[] types;
+        private int[] groupRows;
+        private long[][] offsets;
+        private int[][] lengths;
+        private long rows;
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.User;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes aggregates as a compact columnar file, loosely modelled on Parquet. Each table's rows are buffered in row
+ * groups and written a column at a time, user and channel columns hold indexes into dictionaries that are written
+ * once in the footer, and each column type has an encoding to suit its data: run lengths for channels (which change
+ * rarely as processors go channel by channel), deltas for days and plain varints for users and counts. The footer
+ * records where every column chunk is, so readers can load just the columns they need.
+ *
+ * Layout: MAGIC, column chunks, footer, footer length (4 bytes), MAGIC. The footer is written with DataOutputStream
+ * (big-endian, modified UTF-8 strings), column chunks are unsigned LEB128 varints. See ColumnarReader.
+ *
+ * @author dledmonds
+ */
+public class ColumnarWriter implements Closeable {
+
+    static final byte[] MAGIC = "SLKCOL01".getBytes(StandardCharsets.US_ASCII);
+    static final int ROW_GROUP = 65536;
+
+    enum Type {
+        USER, CHANNEL, DAY, COUNT
+    }
+
+    private final DataOutputStream out;
+    private final UserRegistry users;
+    private final Interner<Conversation> channels = new Interner<>();
+    private final List<Table> tables = new ArrayList<>();
+    private final Encoder encoder = new Encoder();
+    private long position;
+
+    /**
+     * @param users the user dictionary, indexes from this registry are written as they are
+     */
+    ColumnarWriter(OutputStream out, UserRegistry users) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        this.users = users;
+        write(MAGIC, MAGIC.length);
+    }
+
+    /**
+     * @return a new table, filled with set and endRow
+     */
+    Table table(String name, String[] columnNames, Type[] types) {
+        Table table = new Table(name, columnNames, types);
+        tables.add(table);
+        return table;
+    }
+
+    /**
+     * @return the user's dictionary index, the same index if they are from the writer's registry
+     */
+    int user(UserRegistry registry, int user) {
+        return registry == users ? user : users.intern(registry.idOf(user));
+    }
+
+    /**
+     * @param conversation the channel's details if known, may be null
+     * @return the channel's dictionary index
+     */
+    int channel(String channelId, Conversation conversation) {
+        return conversation == null ? channels.intern(channelId) : channels.intern(channelId, conversation);
+    }
+
+    /**
+     * Writes any buffered rows and the footer, then closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Table table : tables) {
+            table.flush();
+        }
+        ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+        DataOutputStream footer = new DataOutputStream(footerBytes);
+        footer.writeInt(tables.size());
+        for (Table table : tables) {
+            footer.writeUTF(table.name);
+            footer.writeInt(table.columnNames.length);
+            for (int c = 0; c < table.columnNames.length; c++) {
+                footer.writeUTF(table.columnNames[c]);
+                footer.writeByte(table.types[c].ordinal());
+            }
+            footer.writeInt(table.groups.size());
+            for (RowGroup group : table.groups) {
+                footer.writeInt(group.rows);
+                for (int c = 0; c < table.columnNames.length; c++) {
+                    footer.writeLong(group.offsets[c]);
+                    footer.writeInt(group.lengths[c]);
+                }
+            }
+        }
+        footer.writeInt(users.size());
+        for (int user = 0; user < users.size(); user++) {
+            User u = users.peek(user); // only what is already known, exporting never calls Slack
+            footer.writeUTF(users.idOf(user));
+            footer.writeUTF(u == null || u.getName() == null ? "" : u.getName());
+            footer.writeUTF(u == null || u.getRealName() == null ? "" : u.getRealName());
+        }
+        footer.writeInt(channels.size());
+        for (int channel = 0; channel < channels.size(); channel++) {
+            Conversation conversation = channels.get(channel);
+            footer.writeUTF(channels.idOf(channel));
+            footer.writeUTF(conversation == null || conversation.getName() == null ? "" : conversation.getName());
+        }
+        footer.writeInt(footerBytes.size());
+        write(footerBytes.toByteArray(), footerBytes.size());
+        write(MAGIC, MAGIC.length);
+        out.close();
+    }
+
+    private void write(byte[] bytes, int length) throws IOException {
+        out.write(bytes, 0, length);
+        position += length;
+    }
+
+    class Table {
+        private final String name;
+        private final String[] columnNames;
+        private final Type[] types;
+        private final long[][] values;
+        private final List<RowGroup> groups = new ArrayList<>();
+        private int rows;
+
+        private Table(String name, String[] columnNames, Type[] types) {
+            this.name = name;
+            this.columnNames = columnNames;
+            this.types = types;
+            this.values = new long[columnNames.length][ROW_GROUP];
+        }
+
+        void set(int column, long value) {
+            values[column][rows] = value;
+        }
+
+        /**
+         * Finishes the row, writing out the row group if it is full. IOExceptions are rethrown unchecked so rows can
+         * be added from the processors' forEach callbacks.
+         */
+        void endRow() {
+            if (++rows < ROW_GROUP) return;
+            try {
+                flush();
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (rows == 0) return;
+            RowGroup group = new RowGroup(rows, columnNames.length);
+            for (int c = 0; c < columnNames.length; c++) {
+                encoder.encode(types[c], values[c], rows);
+                group.offsets[c] = position;
+                group.lengths[c] = encoder.size;
+                write(encoder.bytes, encoder.size);
+            }
+            groups.add(group);
+            rows = 0;
+        }
+    }
+
+    private static class RowGroup {
+        private final int rows;
+        private final long[] offsets;
+        private final int[] lengths;
+
+        RowGroup(int rows, int columns) {
+            this.rows = rows;
+            this.offsets = new long[columns];
+            this.lengths = new int[columns];
+        }
+    }
+
+    private static class Encoder {
+        private byte[] bytes = new byte[ROW_GROUP * 2];
+        private int size;
+
+        void encode(Type type, long[] values, int rows) {
+            size = 0;
+            if (type == Type.CHANNEL) {
+                // (value, run length) pairs
+                int i = 0;
+                while (i < rows) {
+                    int run = 1;
+                    while (i + run < rows && values[i + run] == values[i]) {
+                        run++;
+                    }
+                    varint(values[i]);
+                    varint(run);
+                    i += run;
+                }
+            } else if (type == Type.DAY) {
+                // zigzag encoded difference from the previous row
+                long previous = 0;
+                for (int i = 0; i < rows; i++) {
+                    long delta = values[i] - previous;
+                    varint((delta << 1) ^ (delta >> 63));
+                    previous = values[i];
+                }
+            } else {
+                for (int i = 0; i < rows; i++) {
+                    varint(values[i]);
+                }
+            }
+        }
+
+        private void varint(long value) {
+            if (size + 10 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte)((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte)value;
+        }
+    }
+
+}
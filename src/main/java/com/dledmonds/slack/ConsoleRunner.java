@@ -1,10 +1,17 @@
 package com.dledmonds.slack;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -27,48 +34,301 @@ public class ConsoleRunner {
             System.err.println("Unable to read slack.properties");
             System.exit(1);
         }
+        String source = p.getProperty("slack.source", "api");
         String token = p.getProperty("slack.token");
-        if (token == null || token.isEmpty()) {
+        if (source.equals("api") && (token == null || token.isEmpty())) {
             System.err.println("slack.token must be set");
             System.exit(1);
         }
+        String archiveDirName = p.getProperty("slack.archive.dir");
+        File archiveDir = archiveDirName == null || archiveDirName.isEmpty() ? null : new File(archiveDirName);
+        if (source.equals("archive") && archiveDir == null) {
+            System.err.println("slack.archive.dir must be set to replay an archive");
+            System.exit(1);
+        }
+        String exportFileName = p.getProperty("slack.export.file");
+        if (source.equals("export") && (exportFileName == null || exportFileName.isEmpty())) {
+            System.err.println("slack.export.file must be set to read an export");
+            System.exit(1);
+        }
+
+        if (source.equals("api") && Integer.parseInt(p.getProperty("slack.serve.port", "0")) > 0
+                && Long.parseLong(p.getProperty("slack.serve.refresh.minutes", "15")) > 0
+                && Long.parseLong(p.getProperty("slack.checkpoint.seconds", "60")) <= 0) {
+            // without checkpoints a refresh that fails part way leaves pages counted that will be fetched again
+            System.err.println("slack.checkpoint.seconds must be more than 0 to refresh served results");
+            System.exit(1);
+        }
 
         try {
             SlackEngine st = new SlackEngine(token, args);
+            st.setOrderedMessages(Boolean.parseBoolean(p.getProperty("slack.ordered", "true")));
+            st.setSortRunSize(Integer.parseInt(p.getProperty("slack.sort.runSize", "50000")));
+            st.setFetchThreads(Integer.parseInt(p.getProperty("slack.fetch.threads", "4")));
+            st.setPrefetchPages(Integer.parseInt(p.getProperty("slack.prefetch.pages", "2")));
+            st.setPageLimit(Integer.parseInt(p.getProperty("slack.history.limit", "200")));
+            st.setDispatchThreads(Integer.parseInt(p.getProperty("slack.dispatch.threads", "1")));
+            st.setThreadReplies(Boolean.parseBoolean(p.getProperty("slack.replies", "false")));
+            st.setReplyThreads(Integer.parseInt(p.getProperty("slack.replies.threads", "2")));
+            st.setReplyPollDays(Integer.parseInt(p.getProperty("slack.replies.poll.days", "7")));
+            st.setCheckpointInterval(Long.parseLong(p.getProperty("slack.checkpoint.seconds", "60")) * 1000);
+            st.setRetries(Integer.parseInt(p.getProperty("slack.retries", "5")));
+            String apiUrl = p.getProperty("slack.api.url");
+            if (apiUrl != null && !apiUrl.isEmpty()) st.setApiUrl(apiUrl);
+            st.setRateLimitScale(Double.parseDouble(p.getProperty("slack.rate.scale", "1")));
+            String cacheDirName = p.getProperty("slack.cache.dir");
+            if (cacheDirName != null && !cacheDirName.isEmpty()) {
+                long ttlMinutes = Long.parseLong(p.getProperty("slack.cache.ttl.minutes", "1440"));
+                boolean backgroundRefresh = p.getProperty("slack.cache.refresh", "background").equals("background");
+                st.setMetadataCache(new MetadataCache(new File(cacheDirName), ttlMinutes * 60000, backgroundRefresh));
+            }
+            String timeZone = p.getProperty("slack.timezone");
+            ZoneId zone = timeZone == null || timeZone.isEmpty() ? ZoneId.systemDefault() : ZoneId.of(timeZone);
+
             //StreamOutputProcessor p1 = new StreamOutputProcessor(System.out);
-            StreamOutputProcessor p1 = new StreamOutputProcessor(new FileOutputStream(System.currentTimeMillis() + ".log"));
-            st.addChannelProcessor(p1);
-            st.addUserProcessor(p1);
-            st.addMessageProcessor(p1);
+            OutputFormat logFormat = OutputFormat.forName(p.getProperty("slack.log.format", "text"), zone);
+            boolean logGzip = Boolean.parseBoolean(p.getProperty("slack.log.gzip", "false"));
+            String logFileName = System.currentTimeMillis() + "." + logFormat.extension() + (logGzip ? ".gz" : "");
+            StreamOutputProcessor p1 = new StreamOutputProcessor(new FileOutputStream(logFileName), logFormat, logGzip);
+            st.addProcessor(p1);
 
-            UserMessageCountProcessor p2 = new UserMessageCountProcessor(10);
-            st.addChannelProcessor(p2);
-            st.addUserProcessor(p2);
-            st.addMessageProcessor(p2);
+            // one directory for all the count processors, users missing from it are looked up when reported
+            UserRegistry users = new UserRegistry();
+            st.setUserRegistry(users);
+            st.setLazyUsers(Boolean.parseBoolean(p.getProperty("slack.users.lazy", Boolean.toString(args.length > 0))));
 
-            UserHereOrChannelMessageCountProcessor p3 = new UserHereOrChannelMessageCountProcessor(10);
-            st.addChannelProcessor(p3);
-            st.addUserProcessor(p3);
-            st.addMessageProcessor(p3);
+            // every filtering processor registers its patterns here, so each message's text is scanned once
+            MessageMatcher matcher = new MessageMatcher();
 
-            UserMessageCountPerDayProcessor p4 = new UserMessageCountPerDayProcessor(10);
-            st.addChannelProcessor(p4);
-            st.addUserProcessor(p4);
-            st.addMessageProcessor(p4);
+            // the count statistics, all computed in one pass per message
+            PipelineProcessor p2 = new PipelineProcessor(pipelineConfig(p), users, zone, matcher);
+            st.addProcessor(p2);
 
-            st.run(); // single threaded
+            UserMessageCountPerDayProcessor p4 = new UserMessageCountPerDayProcessor(10, zone, users);
+            st.addProcessor(p4);
 
-            System.out.println();
-            p2.outputResults(System.out);
+            SketchStatisticsProcessor p5 = null;
+            if (Boolean.parseBoolean(p.getProperty("slack.sketch", "false"))) {
+                p5 = new SketchStatisticsProcessor(10, Integer.parseInt(p.getProperty("slack.sketch.precision", "12")),
+                        Integer.parseInt(p.getProperty("slack.sketch.capacity", "1000")), users);
+                st.addProcessor(p5);
+            }
+
+            Map<String, SnapshotProcessor> snapshots = new LinkedHashMap<>();
+            for (PipelineProcessor.View view : p2.views()) {
+                snapshots.put(view.getName(), view);
+            }
+            snapshots.put("user-message-count-per-day", p4);
+            if (p5 != null) snapshots.put("approximate-statistics", p5);
+
+            CrawlState crawlState = null;
+            MessageArchive archive = null;
+            if (archiveDir != null) {
+                archive = new MessageArchive(archiveDir, Boolean.parseBoolean(p.getProperty("slack.archive.text", "false")));
+            }
+
+            List<Integer> windows = new ArrayList<>();
+            for (String window : p.getProperty("slack.report.windows", "").split(",")) {
+                if (!window.trim().isEmpty()) windows.add(Integer.parseInt(window.trim()));
+            }
+            int servePort = Integer.parseInt(p.getProperty("slack.serve.port", "0"));
+
+            long progressSeconds = Long.parseLong(p.getProperty("slack.progress.seconds", "30"));
+            ProgressReporter progress = progressSeconds > 0
+                    ? new ProgressReporter(st.getMetrics(), progressSeconds * 1000, System.out) : null;
+
+            if (source.equals("archive")) {
+                st.replay(archive);
+            } else if (source.equals("export")) {
+                int exportThreads = Integer.parseInt(p.getProperty("slack.export.threads", "4"));
+                st.replay(new SlackExportSource(new File(exportFileName), exportThreads, args));
+            } else {
+                crawlState = prepareCrawl(st, p, archive, snapshots, servePort > 0);
+                crawl(st, archive, crawlState);
+            }
+            if (servePort <= 0) p1.close(); // the log carries on through the refreshes
+            if (progress != null) progress.close();
+
+            String resultsFileName = p.getProperty("slack.results.file");
+            if (resultsFileName != null && !resultsFileName.isEmpty()) {
+                try (ColumnarWriter writer = new ColumnarWriter(new FileOutputStream(resultsFileName), users)) {
+                    for (Map.Entry<String, SnapshotProcessor> entry : snapshots.entrySet()) {
+                        if (entry.getValue() instanceof ColumnarExportable) {
+                            ((ColumnarExportable)entry.getValue()).exportColumns(writer, entry.getKey());
+                        }
+                    }
+                }
+                System.out.println("Results written to " + resultsFileName);
+            }
+
+            String metricsFileName = p.getProperty("slack.metrics.file");
+            if (metricsFileName != null && !metricsFileName.isEmpty()) {
+                try (OutputStream out = new FileOutputStream(metricsFileName)) {
+                    st.getMetrics().writeJson(out);
+                }
+                System.out.println("Metrics written to " + metricsFileName);
+            }
+
+            for (PipelineProcessor.View view : p2.views()) {
+                System.out.println();
+                view.outputResults(System.out);
+            }
 
             System.out.println();
             p4.outputResults(System.out);
+            for (int window : windows) {
+                System.out.println();
+                p4.outputResults(System.out, window);
+            }
 
-            System.out.println();
-            p3.outputResults(System.out);
+            if (p5 != null) {
+                System.out.println();
+                p5.outputResults(System.out);
+            }
+
+            if (servePort > 0) serve(st, p, servePort, archive, crawlState, snapshots, p4, windows, p1);
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
     }
 
+    /**
+     * @return the statistics in slack.pipeline.file, or else slack.properties, defaulting to the user message count,
+     * the @here/@channel count and, if there are slack.keywords, the keyword count
+     */
+    private static PipelineConfig pipelineConfig(Properties p) throws IOException {
+        String pipelineFileName = p.getProperty("slack.pipeline.file");
+        Properties pipeline = p;
+        if (pipelineFileName != null && !pipelineFileName.isEmpty()) {
+            pipeline = new Properties();
+            try (InputStream in = new FileInputStream(pipelineFileName)) {
+                pipeline.load(in);
+            }
+        }
+        PipelineConfig config = PipelineConfig.fromProperties(pipeline);
+        if (!config.isEmpty()) return config;
+
+        config.add(PipelineConfig.Statistic.userCount("user-message-count", "User Messages Count", 10));
+        config.add(PipelineConfig.Statistic.userCount("user-here-or-channel-message-count",
+                "User @here/@channel Messages Count", 10, "<!here>", "<!channel>"));
+        List<String> keywords = new ArrayList<>();
+        for (String keyword : p.getProperty("slack.keywords", "").split(",")) {
+            if (!keyword.trim().isEmpty()) keywords.add(keyword.trim());
+        }
+        if (!keywords.isEmpty()) {
+            config.add(PipelineConfig.Statistic.userCount("user-keyword-message-count", "User Keyword Messages Count",
+                    10, keywords.toArray(new String[0])));
+        }
+        return config;
+    }
+
+    /**
+     * @param serving true if the crawl will be refreshed, which needs crawl state even without a state file
+     * @return the crawl state the engine was given, or null for a full crawl
+     */
+    private static CrawlState prepareCrawl(SlackEngine st, Properties p, MessageArchive archive,
+                                           Map<String, SnapshotProcessor> snapshots, boolean serving) throws IOException {
+        if (archive != null) {
+            st.addProcessor(archive);
+        }
+
+        // incremental mode, only fetch what is new since the last run and merge into the saved aggregates
+        String stateFileName = p.getProperty("slack.state.file");
+        File stateFile = null;
+        if (stateFileName != null && !stateFileName.isEmpty()) {
+            stateFile = new File(stateFileName);
+        } else if (serving) {
+            // refreshes still need to know where each channel got to, but only for the life of this process
+            stateFile = File.createTempFile("slack-state", ".zip");
+            stateFile.delete();
+            stateFile.deleteOnExit();
+        }
+        if (stateFile == null) return null;
+
+        CrawlState crawlState = new CrawlState(stateFile);
+        for (Map.Entry<String, SnapshotProcessor> snapshot : snapshots.entrySet()) {
+            crawlState.addSnapshotProcessor(snapshot.getKey(), snapshot.getValue());
+        }
+        crawlState.load();
+        st.setCrawlState(crawlState);
+        return crawlState;
+    }
+
+    private static void crawl(SlackEngine st, MessageArchive archive, CrawlState crawlState) throws IOException {
+        st.run(); // processor callbacks are serialised by the engine
+        if (archive != null) archive.close(); // archived messages must be on disk before the state moves past them
+
+        if (crawlState != null && st.getFailure() == null) {
+            crawlState.save();
+        } else if (crawlState != null && st.isResumable()) {
+            crawlState.save();
+            System.out.println("Saved progress to " + crawlState.getFile() + ", run again to resume");
+        }
+    }
+
+    /**
+     * Serves the results over HTTP and, for API crawls, refreshes them incrementally on a schedule. Only returns
+     * if there is nothing to refresh, or a refresh failed in a way it can't resume from, the server then keeps the
+     * process running.
+     */
+    private static void serve(SlackEngine st, Properties p, int port, MessageArchive archive, CrawlState crawlState,
+                              Map<String, SnapshotProcessor> snapshots, UserMessageCountPerDayProcessor perDay,
+                              List<Integer> windows, Closeable log) throws IOException, InterruptedException {
+        int depth = Integer.parseInt(p.getProperty("slack.serve.depth", "100"));
+        String host = p.getProperty("slack.serve.host", "127.0.0.1");
+        StatsServer server = new StatsServer(host, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            try {
+                log.close();
+            } catch (IOException ioe) {
+                System.err.println("Unable to close the log: " + ioe);
+            }
+        }));
+        server.publish(rankings(snapshots, perDay, windows, depth));
+        System.out.println();
+        System.out.println("Serving results on " + host + ":" + server.getPort());
+
+        long refreshMillis = Long.parseLong(p.getProperty("slack.serve.refresh.minutes", "15")) * 60000;
+        if (crawlState == null || refreshMillis <= 0) return;
+        while (true) {
+            Thread.sleep(refreshMillis);
+            System.out.println("Refreshing");
+            try {
+                crawl(st, archive, crawlState);
+                if (st.getFailure() != null && !st.isResumable()) {
+                    // the processors may hold messages the crawl state doesn't, the next refresh would count them again
+                    server.refreshFailed(st.getFailure());
+                    System.err.println("Refreshes stopped, serving the results from before the failed refresh");
+                    return;
+                }
+                // a resumable failure's partial results are consistent with the crawl state (checkpoints are on)
+                server.publish(rankings(snapshots, perDay, windows, depth));
+                if (st.getFailure() != null) server.refreshFailed(st.getFailure());
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(System.err);
+                server.refreshFailed(e); // try again next time
+            }
+        }
+    }
+
+    /**
+     * @return every ranked processor's rankings, named as their snapshots, plus the windowed per day rates
+     */
+    private static ResultSnapshot rankings(Map<String, SnapshotProcessor> snapshots,
+                                           UserMessageCountPerDayProcessor perDay, List<Integer> windows, int depth) {
+        ResultSnapshot.Builder builder = new ResultSnapshot.Builder();
+        for (Map.Entry<String, SnapshotProcessor> entry : snapshots.entrySet()) {
+            if (entry.getValue() instanceof RankedProcessor) {
+                ((RankedProcessor)entry.getValue()).addRankings(builder, entry.getKey(), depth);
+            }
+            if (entry.getValue() == perDay) {
+                for (int window : windows) {
+                    perDay.addRankings(builder, entry.getKey() + "-" + window + "d", depth, window);
+                }
+            }
+        }
+        return builder.build();
+    }
+
 }
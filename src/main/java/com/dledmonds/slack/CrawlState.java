@@ -0,0 +1,296 @@
+package com.dledmonds.slack;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Newest message timestamp seen per channel, persisted between runs so only newer history is fetched. The
+ * aggregates of any registered snapshot processors are saved in the same file, so the two can never disagree.
+ * Checkpoints taken during a run also record how far each unfinished channel got (its next page cursor, plus the
+ * sorted runs of messages fetched but not yet processed and the threads whose replies were still being fetched),
+ * so a run that fails part way through carries on from there when started again with the same file.
+ *
+ * @author dledmonds
+ */
+public class CrawlState {
+
+    private static final String STATE_ENTRY = "crawl.properties";
+    private static final String LATEST_PREFIX = "latest.";
+    private static final String REPLY_PREFIX = "reply.";
+    private static final String PAGE_PREFIX = "page.";
+    private static final String PENDING_PREFIX = "pending.";
+
+    private final File file;
+    private final Properties properties = new Properties();
+    private final Map<String, SnapshotProcessor> snapshotProcessors = new LinkedHashMap<>();
+    private final List<File> deleteAfterSave = new ArrayList<>();
+
+    CrawlState(File file) {
+        this.file = file;
+    }
+
+    void addSnapshotProcessor(String name, SnapshotProcessor snapshotProcessor) {
+        snapshotProcessors.put(name + ".snapshot", snapshotProcessor);
+    }
+
+    synchronized String getLatestTs(String channel) {
+        return properties.getProperty(LATEST_PREFIX + channel);
+    }
+
+    synchronized void setLatestTs(String channel, String ts) {
+        String current = getLatestTs(channel);
+        if (current == null || SlackTs.compare(current, ts) < 0) {
+            properties.setProperty(LATEST_PREFIX + channel, ts);
+        }
+    }
+
+    /**
+     * @return the latest_reply of the thread when its replies were last fetched, null if never
+     */
+    synchronized String getLatestReply(String channel, String threadTs) {
+        return properties.getProperty(REPLY_PREFIX + channel + "." + threadTs);
+    }
+
+    synchronized void setLatestReply(String channel, String threadTs, String latestReply) {
+        String current = getLatestReply(channel, threadTs);
+        if (current == null || SlackTs.compare(current, latestReply) < 0) {
+            properties.setProperty(REPLY_PREFIX + channel + "." + threadTs, latestReply);
+        }
+    }
+
+    /**
+     * @return thread ts to latest_reply of the channel's recorded threads with a reply at or after oldestTs
+     */
+    synchronized Map<String, String> getThreads(String channel, String oldestTs) {
+        Map<String, String> threads = new LinkedHashMap<>();
+        String prefix = REPLY_PREFIX + channel + ".";
+        for (String name : properties.stringPropertyNames()) {
+            String latestReply = properties.getProperty(name);
+            if (name.startsWith(prefix) && SlackTs.compare(latestReply, oldestTs) >= 0) {
+                threads.put(name.substring(prefix.length()), latestReply);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Forgets the channel's threads with no reply since oldestTs, they won't be polled for replies again.
+     */
+    synchronized void pruneThreads(String channel, String oldestTs) {
+        String prefix = REPLY_PREFIX + channel + ".";
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix) && SlackTs.compare(properties.getProperty(name), oldestTs) < 0) {
+                properties.remove(name);
+            }
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return where the channels in progress keep their fetched but unprocessed messages
+     */
+    File getRunDir() {
+        return new File(file.getPath() + ".runs");
+    }
+
+    /**
+     * @return how far the channel got in an earlier run that didn't finish it, null if it isn't in progress
+     */
+    synchronized Position getPosition(String channel) {
+        String cursor = properties.getProperty(PAGE_PREFIX + channel + ".cursor");
+        if (cursor == null) return null;
+        List<File> runs = new ArrayList<>();
+        for (String name : properties.getProperty(PAGE_PREFIX + channel + ".runs", "").split(",")) {
+            if (!name.isEmpty()) runs.add(new File(getRunDir(), name));
+        }
+        return new Position(cursor, properties.getProperty(PAGE_PREFIX + channel + ".oldest"),
+                properties.getProperty(PAGE_PREFIX + channel + ".latest"),
+                Long.parseLong(properties.getProperty(PAGE_PREFIX + channel + ".count", "0")), runs);
+    }
+
+    synchronized void setPosition(String channel, Position position) {
+        properties.setProperty(PAGE_PREFIX + channel + ".cursor", position.cursor);
+        setOrRemove(PAGE_PREFIX + channel + ".oldest", position.oldest);
+        setOrRemove(PAGE_PREFIX + channel + ".latest", position.latestTs);
+        properties.setProperty(PAGE_PREFIX + channel + ".count", Long.toString(position.messageCount));
+        StringBuilder runs = new StringBuilder();
+        for (File run : position.runs) {
+            if (runs.length() > 0) runs.append(',');
+            runs.append(run.getName());
+        }
+        properties.setProperty(PAGE_PREFIX + channel + ".runs", runs.toString());
+    }
+
+    /**
+     * Records that every message in the channel up to latestTs (null if there were none) has been processed.
+     */
+    synchronized void completeChannel(String channel, String latestTs) {
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PAGE_PREFIX + channel + ".") || name.startsWith(PENDING_PREFIX + channel + ".")) {
+                properties.remove(name);
+            }
+        }
+        if (latestTs != null) setLatestTs(channel, latestTs);
+    }
+
+    /**
+     * Records a thread whose replies are being fetched, so they are fetched again if the run stops first.
+     */
+    synchronized void addPendingThread(String channel, String threadTs, String latestReply) {
+        properties.setProperty(PENDING_PREFIX + channel + "." + threadTs, latestReply == null ? "" : latestReply);
+    }
+
+    /**
+     * @return thread ts to latest_reply (empty if unknown) of the channel's threads whose replies were being fetched
+     */
+    synchronized Map<String, String> getPendingThreads(String channel) {
+        Map<String, String> threads = new LinkedHashMap<>();
+        String prefix = PENDING_PREFIX + channel + ".";
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix)) threads.put(name.substring(prefix.length()), properties.getProperty(name));
+        }
+        return threads;
+    }
+
+    /**
+     * Records that the thread's replies have been processed.
+     */
+    synchronized void completeThread(String channel, String threadTs, String latestReply) {
+        properties.remove(PENDING_PREFIX + channel + "." + threadTs);
+        if (latestReply != null) setLatestReply(channel, threadTs, latestReply);
+    }
+
+    /**
+     * Files deleted once a save no longer refers to them.
+     */
+    synchronized void deleteAfterSave(List<File> files) {
+        deleteAfterSave.addAll(files);
+    }
+
+    /**
+     * @return number of channels a checkpoint would resume
+     */
+    synchronized int inProgress() {
+        int channels = 0;
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PAGE_PREFIX) && name.endsWith(".cursor")) channels++;
+        }
+        return channels;
+    }
+
+    private void setOrRemove(String name, String value) {
+        if (value == null) {
+            properties.remove(name);
+        } else {
+            properties.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Reads the saved high-water marks and merges saved aggregates into the registered processors.
+     */
+    synchronized void load() throws IOException {
+        if (!file.exists()) return;
+        try (ZipInputStream zin = new ZipInputStream(Files.newInputStream(file.toPath()))) {
+            InputStream entryIn = new FilterInputStream(zin) {
+                @Override
+                public void close() {
+                    // processors must not close the archive
+                }
+            };
+            ZipEntry entry;
+            while ((entry = zin.getNextEntry()) != null) {
+                if (entry.getName().equals(STATE_ENTRY)) {
+                    properties.load(entryIn);
+                } else if (snapshotProcessors.containsKey(entry.getName())) {
+                    snapshotProcessors.get(entry.getName()).readSnapshot(entryIn);
+                }
+            }
+        }
+
+        // runs spilled after the last checkpoint, or left by channels that finished, aren't needed any more
+        Set<File> referenced = new HashSet<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(PAGE_PREFIX) && name.endsWith(".cursor")) {
+                referenced.addAll(getPosition(name.substring(PAGE_PREFIX.length(), name.length() - ".cursor".length())).runs);
+            }
+        }
+        File[] runs = getRunDir().listFiles();
+        if (runs != null) {
+            for (File run : runs) {
+                if (!referenced.contains(run)) run.delete();
+            }
+        }
+        int channels = inProgress();
+        if (channels > 0) System.out.println("Resuming " + channels + " channels from the last checkpoint");
+    }
+
+    synchronized void save() throws IOException {
+        Utils.writeAtomically(file, out -> {
+            ZipOutputStream zout = new ZipOutputStream(out);
+            OutputStream entryOut = new UnclosableOutputStream(zout);
+            zout.putNextEntry(new ZipEntry(STATE_ENTRY));
+            properties.store(entryOut, "slack-statistics crawl state");
+            for (Map.Entry<String, SnapshotProcessor> entry : snapshotProcessors.entrySet()) {
+                zout.putNextEntry(new ZipEntry(entry.getKey()));
+                entry.getValue().writeSnapshot(entryOut);
+            }
+            zout.finish();
+        });
+        for (File delete : deleteAfterSave) {
+            delete.delete();
+        }
+        deleteAfterSave.clear();
+    }
+
+    static class Position {
+        final String cursor; // empty when every page has been fetched
+        final String oldest;
+        final String latestTs;
+        final long messageCount;
+        final List<File> runs;
+
+        Position(String cursor, String oldest, String latestTs, long messageCount, List<File> runs) {
+            this.cursor = cursor == null ? "" : cursor;
+            this.oldest = oldest;
+            this.latestTs = latestTs;
+            this.messageCount = messageCount;
+            this.runs = runs;
+        }
+    }
+
+    private static class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.dledmonds.slack;
+
+import java.util.Arrays;
+
+/**
+ * Rows of long accumulators keyed by a packed long group key, e.g. channel, user and day indexes. Every row has the
+ * same number of columns, so statistics grouped the same way share one table and one lookup per message. Open
+ * addressing, with the rows in insertion order so iterating them is a straight scan. Not thread safe.
+ *
+ * @author dledmonds
+ */
+public class GroupTable {
+
+    private static final int EMPTY = -1;
+
+    private final int width;
+    private int[] slots; // hash slot to row, EMPTY if free
+    private long[] keys; // by row
+    private long[] values; // row * width + column
+    private int mask;
+    private int rows;
+
+    GroupTable(int width) {
+        this.width = width;
+        this.keys = new long[16];
+        this.values = new long[16 * width];
+        allocate(32);
+    }
+
+    int width() {
+        return width;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    long key(int row) {
+        return keys[row];
+    }
+
+    long get(int row, int column) {
+        return values[row * width + column];
+    }
+
+    void add(int row, int column, long delta) {
+        values[row * width + column] += delta;
+    }
+
+    /**
+     * @return the row for the key, adding an empty one if it has none
+     */
+    int row(long key) {
+        int slot = slotOf(key);
+        int row = slots[slot];
+        if (row != EMPTY) return row;
+        if (rows == keys.length) {
+            keys = Arrays.copyOf(keys, rows * 2);
+            values = Arrays.copyOf(values, rows * 2 * width);
+        }
+        row = rows++;
+        keys[row] = key;
+        slots[slot] = row;
+        if (rows * 2 > slots.length) rehash(slots.length * 2);
+        return row;
+    }
+
+    /**
+     * Adds every row of the other table, which must have the same width, into this one.
+     */
+    void addAll(GroupTable other) {
+        for (int r = 0; r < other.rows; r++) {
+            int row = row(other.keys[r]);
+            for (int c = 0; c < width; c++) {
+                values[row * width + c] += other.values[r * width + c];
+            }
+        }
+    }
+
+    private int slotOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int)(h ^ (h >>> 32)) & mask;
+        while (slots[slot] != EMPTY && keys[slots[slot]] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        allocate(capacity);
+        for (int row = 0; row < rows; row++) {
+            slots[slotOf(keys[row])] = row;
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+    }
+
+}
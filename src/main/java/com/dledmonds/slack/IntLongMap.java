@@ -0,0 +1,99 @@
+package com.dledmonds.slack;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing map of non-negative int keys to long values, with no boxing on get or update.
+ *
+ * @author dledmonds
+ */
+public class IntLongMap {
+
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    IntLongMap() {
+        this(16);
+    }
+
+    IntLongMap(int expectedSize) {
+        allocate(Math.max(16, Integer.highestOneBit(Math.max(1, expectedSize) * 2 - 1) << 1));
+    }
+
+    long get(int key) {
+        int slot = slotOf(key);
+        return keys[slot] == key ? values[slot] : 0;
+    }
+
+    /**
+     * @return the new value for the key, missing keys start from 0
+     */
+    long addTo(int key, long delta) {
+        if (key < 0) throw new IllegalArgumentException("Negative key " + key);
+        int slot = slotOf(key);
+        if (keys[slot] != key) {
+            keys[slot] = key;
+            size++;
+            if (size * 2 > keys.length) {
+                rehash(keys.length * 2);
+                slot = slotOf(key);
+            }
+        }
+        return values[slot] += delta;
+    }
+
+    void put(int key, long value) {
+        addTo(key, value - get(key));
+    }
+
+    void addAll(IntLongMap other) {
+        other.forEach(this::addTo);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = slotOf(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    interface EntryConsumer {
+        void accept(int key, long value);
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.dledmonds.slack;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps string ids (users, channels) to dense int indexes, optionally holding a value against each index.
+ * Lookups are lock free so an interner can be shared with dispatch threads while new ids are still being added.
+ *
+ * @author dledmonds
+ */
+public class Interner<T> {
+
+    private final Map<String, Integer> indexes = new ConcurrentHashMap<>();
+    private volatile String[] ids = new String[16];
+    private volatile Object[] values = new Object[16];
+    private volatile int size;
+
+    /**
+     * @return the index for the id, assigning the next free one if it hasn't been seen before
+     */
+    int intern(String id) {
+        Integer index = indexes.get(id);
+        if (index != null) return index;
+        synchronized (this) {
+            index = indexes.get(id);
+            if (index != null) return index;
+            if (size == ids.length) {
+                values = Arrays.copyOf(values, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size] = id;
+            index = size++;
+            indexes.put(id, index); // published last, so readers holding an index always find its id
+            return index;
+        }
+    }
+
+    synchronized int intern(String id, T value) {
+        int index = intern(id);
+        values[index] = value;
+        return index;
+    }
+
+    /**
+     * @return the index for the id, or -1 if it has never been interned
+     */
+    int indexOf(String id) {
+        Integer index = indexes.get(id);
+        return index == null ? -1 : index;
+    }
+
+    String idOf(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @return the value held against the index, null if the id was interned without one
+     */
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        return (T)values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+}
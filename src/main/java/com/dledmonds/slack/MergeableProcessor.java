@@ -0,0 +1,28 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+
+/**
+ * A message processor whose aggregation can be split across threads, in the style of a combiner. Each dispatch
+ * thread accumulates into its own partial aggregate and the partials are merged back in once dispatch is done.
+ * <p>
+ * Partials may see any subset of messages in any order, so aggregates must not depend on message order. The
+ * processor's seenUser/seenChannel state is shared read-only with the dispatch threads and must tolerate that.
+ *
+ * @author dledmonds
+ */
+public interface MergeableProcessor<P> extends MessageProcessor {
+
+    /**
+     * @return an empty aggregate, only ever used by one thread at a time
+     */
+    P newPartial();
+
+    void seenMessage(P partial, String channel, Message message);
+
+    /**
+     * Adds a partial's aggregates into this processor's own. Called on the engine thread once a partial is finished.
+     */
+    void merge(P partial);
+
+}
@@ -0,0 +1,383 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.User;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Append-only local copy of fetched messages that can be replayed through the processors without the Slack API.
+ * <p>
+ * Each channel is written to numbered segment files (CHANNEL.N.seg) holding fixed layout records of ts in epoch
+ * micros, an index into the users.dat dictionary, flag bits, the thread's ts for replies (0 otherwise) and optional
+ * UTF-8 text. Segments roll over before they reach SEGMENT_LIMIT so every one can be memory mapped in one piece on
+ * replay. Channel details go to channels.dat, and a user's latest details are appended to users.dat whenever they
+ * change. When text isn't stored, replayed messages carry just the @here/@channel markers recorded in their flags.
+ * Replies keep the ts of their thread and messages with files get a placeholder file, so filters on either replay the
+ * same. Messages fetched again (by a run without its state file, or resumed from an earlier checkpoint) are archived
+ * again, replay only passes on the first copy of each ts in a channel.
+ *
+ * @author dledmonds
+ */
+public class MessageArchive implements ChannelProcessor, MessageProcessor, UserProcessor, MessageSource, Closeable {
+
+    static final int FLAG_HERE = 1;
+    static final int FLAG_CHANNEL = 2;
+    static final int FLAG_FILES = 4;
+    static final int FLAG_REPLY = 8;
+
+    private static final int MAGIC = 0x534c4b31; // SLK1
+    private static final long SEGMENT_LIMIT = 256L * 1024 * 1024;
+    private static final int MAX_OPEN_SEGMENTS = 32;
+    private static final int REPLAY_BATCH = 1000;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File dir;
+    private final boolean storeText;
+    private final Map<String, Integer> userIndex = new HashMap<>();
+    private final List<String[]> users = new ArrayList<>(); // id, name, real name, deleted, bot
+    private final Set<String> writtenChannels = new HashSet<>();
+    private PrintStream usersOut;
+    private PrintStream channelsOut;
+    private final Map<String, SegmentWriter> writers = new LinkedHashMap<String, SegmentWriter>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SegmentWriter> eldest) {
+            if (size() <= MAX_OPEN_SEGMENTS) return false;
+            eldest.getValue().closeQuietly();
+            return true;
+        }
+    };
+
+    MessageArchive(File dir, boolean storeText) throws IOException {
+        this.dir = dir;
+        this.storeText = storeText;
+        dir.mkdirs();
+        for (String[] user : readTsv(new File(dir, "users.dat"), 5)) {
+            Integer index = userIndex.get(user[0]);
+            if (index == null) {
+                userIndex.put(user[0], users.size());
+                users.add(user);
+            } else {
+                users.set(index, user); // appended when their details changed
+            }
+        }
+    }
+
+    @Override
+    public void seenUser(User user) {
+        internUser(user.getId(), user.getName(), user.getRealName(), user.isDeleted(), user.isBot());
+    }
+
+    @Override
+    public void seenChannel(Conversation conversation) {
+        if (!writtenChannels.add(conversation.getId())) return;
+        try {
+            if (channelsOut == null) channelsOut = appendTo(new File(dir, "channels.dat"));
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to write channel " + conversation.getId(), ioe);
+        }
+        channelsOut.println(clean(conversation.getId()) + "\t" + clean(conversation.getName())
+                + "\t" + conversation.isArchived()
+                + "\t" + (conversation.getNumOfMembers() == null ? "" : conversation.getNumOfMembers()));
+    }
+
+    @Override
+    public int messageFields() {
+        return MessageRecord.TEXT | MessageRecord.FILES | MessageRecord.THREAD;
+    }
+
+    @Override
+    public void seenMessage(String channel, Message message) {
+        Integer user = userIndex.get(message.getUser());
+        if (user == null) user = internUser(message.getUser(), null, null, false, false);
+
+        String text = message.getText();
+        int flags = 0;
+        if (text != null && text.contains("<!here>")) flags |= FLAG_HERE;
+        if (text != null && text.contains("<!channel>")) flags |= FLAG_CHANNEL;
+        if (message.getFiles() != null && !message.getFiles().isEmpty()) flags |= FLAG_FILES;
+        long threadTs = 0;
+        if (message.getThreadTs() != null && !message.getThreadTs().equals(message.getTs())) {
+            flags |= FLAG_REPLY;
+            threadTs = SlackTs.parseMicros(message.getThreadTs());
+        }
+
+        try {
+            SegmentWriter writer = writers.get(channel);
+            if (writer == null) {
+                writer = new SegmentWriter(channel);
+                writers.put(channel, writer);
+            }
+            writer.write(SlackTs.parseMicros(message.getTs()), user, flags, threadTs, storeText ? text : null);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to archive message for " + channel, ioe);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (SegmentWriter writer : writers.values()) {
+            writer.close();
+        }
+        writers.clear();
+        if (usersOut != null) usersOut.close();
+        if (channelsOut != null) channelsOut.close();
+        usersOut = null;
+        channelsOut = null;
+    }
+
+    @Override
+    public void replay(SlackEngine engine) throws IOException {
+        close(); // make sure anything written this session is on disk
+
+        List<User> allUsers = new ArrayList<>();
+        List<String> userIds = new ArrayList<>();
+        for (String[] fields : users) {
+            User user = new User();
+            user.setId(fields[0]);
+            user.setName(fields[1].isEmpty() ? fields[0] : fields[1]);
+            user.setRealName(fields[2]);
+            user.setDeleted(Boolean.parseBoolean(fields[3]));
+            user.setBot(Boolean.parseBoolean(fields[4]));
+            allUsers.add(user);
+            userIds.add(fields[0]);
+        }
+        engine.fireUsers(allUsers);
+
+        Map<String, Conversation> channels = new HashMap<>();
+        for (String[] fields : readTsv(new File(dir, "channels.dat"), 4)) {
+            channels.put(fields[0], Conversation.builder().id(fields[0]).name(fields[1]).isChannel(true)
+                    .isArchived(Boolean.parseBoolean(fields[2]))
+                    .numOfMembers(fields[3].isEmpty() ? null : Integer.valueOf(fields[3])).build());
+        }
+        Map<String, TreeMap<Integer, File>> segments = listSegments();
+        for (String channelId : segments.keySet()) {
+            if (!channels.containsKey(channelId)) {
+                channels.put(channelId, Conversation.builder().id(channelId).name(channelId).isChannel(true).build());
+            }
+        }
+
+        List<Conversation> allChannels = new ArrayList<>(channels.values());
+        allChannels.sort((Conversation c1, Conversation c2) -> c1.getName().compareTo(c2.getName()));
+        for (Conversation conversation : allChannels) {
+            engine.fireChannel(conversation);
+            TreeMap<Integer, File> channelSegments = segments.get(conversation.getId());
+            if (channelSegments == null) continue;
+            GroupTable replayed = new GroupTable(0); // just the ts of the channel's messages so far
+            for (File segment : channelSegments.values()) {
+                replaySegment(engine, conversation.getId(), segment, userIds, replayed);
+            }
+        }
+    }
+
+    private void replaySegment(SlackEngine engine, String channel, File segment, List<String> userIds,
+                               GroupTable replayed) throws IOException {
+        long count = 0;
+        long duplicates = 0;
+        try (FileChannel fc = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (buf.remaining() < 4 || buf.getInt() != MAGIC) {
+                System.err.println("Skipping " + segment.getName() + ", not a message segment");
+                return;
+            }
+
+            List<Message> batch = new ArrayList<>(REPLAY_BATCH);
+            try {
+                while (buf.hasRemaining()) {
+                    long ts = buf.getLong();
+                    int user = buf.getInt();
+                    int flags = buf.get();
+                    long threadTs = buf.getLong();
+                    int length = buf.getInt();
+                    String text;
+                    if (length >= 0) {
+                        byte[] bytes = new byte[length];
+                        buf.get(bytes);
+                        text = new String(bytes, StandardCharsets.UTF_8);
+                    } else {
+                        text = flagText(flags);
+                    }
+                    int rows = replayed.rows();
+                    if (replayed.row(ts) < rows) {
+                        duplicates++;
+                        continue;
+                    }
+
+                    Message message = new Message();
+                    message.setType("message");
+                    message.setTs(SlackTs.format(ts));
+                    message.setUser(userIds.get(user));
+                    message.setText(text);
+                    if ((flags & FLAG_REPLY) != 0) message.setThreadTs(SlackTs.format(threadTs));
+                    if ((flags & FLAG_FILES) != 0) {
+                        message.setFiles(Collections.singletonList(new com.github.seratch.jslack.api.model.File()));
+                    }
+                    batch.add(message);
+                    if (batch.size() >= REPLAY_BATCH) {
+                        engine.fireMessages(channel, batch);
+                        count += batch.size();
+                        batch = new ArrayList<>(REPLAY_BATCH);
+                    }
+                }
+            } catch (BufferUnderflowException bue) {
+                System.err.println("Truncated record at end of " + segment.getName());
+            }
+            engine.fireMessages(channel, batch);
+            count += batch.size();
+        }
+        System.out.println("Replayed " + count + " messages for " + channel + " from " + segment.getName()
+                + (duplicates > 0 ? ", " + duplicates + " already replayed" : ""));
+    }
+
+    private Map<String, TreeMap<Integer, File>> listSegments() {
+        Map<String, TreeMap<Integer, File>> segments = new HashMap<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) return segments;
+        for (File file : files) {
+            String[] parts = file.getName().split("\\.");
+            if (parts.length != 3) continue;
+            segments.computeIfAbsent(parts[0], c -> new TreeMap<>()).put(Integer.parseInt(parts[1]), file);
+        }
+        return segments;
+    }
+
+    /**
+     * @return the user's index, appending their details if they are new or have changed
+     */
+    private int internUser(String id, String name, String realName, boolean deleted, boolean bot) {
+        String[] fields = { clean(id), clean(name), clean(realName), String.valueOf(deleted), String.valueOf(bot) };
+        Integer index = userIndex.get(id);
+        if (index != null && Arrays.equals(users.get(index), fields)) return index;
+        try {
+            if (usersOut == null) usersOut = appendTo(new File(dir, "users.dat"));
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to write user " + id, ioe);
+        }
+        usersOut.println(String.join("\t", fields));
+        if (index != null) {
+            users.set(index, fields);
+            return index;
+        }
+        userIndex.put(id, users.size());
+        users.add(fields);
+        return users.size() - 1;
+    }
+
+    private static String flagText(int flags) {
+        if ((flags & (FLAG_HERE | FLAG_CHANNEL)) == 0) return "";
+        StringBuilder sb = new StringBuilder();
+        if ((flags & FLAG_HERE) != 0) sb.append("<!here>");
+        if ((flags & FLAG_CHANNEL) != 0) sb.append("<!channel>");
+        return sb.toString();
+    }
+
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static PrintStream appendTo(File file) throws IOException {
+        return new PrintStream(new BufferedOutputStream(new FileOutputStream(file, true)), false, "UTF-8");
+    }
+
+    private static List<String[]> readTsv(File file, int columns) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        if (!file.exists()) return rows;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length == columns) rows.add(fields);
+            }
+        }
+        return rows;
+    }
+
+    private class SegmentWriter implements Closeable {
+        private final String channel;
+        private int segment;
+        private long size;
+        private DataOutputStream out;
+
+        SegmentWriter(String channel) throws IOException {
+            this.channel = channel;
+            TreeMap<Integer, File> existing = listSegments().get(channel);
+            if (existing == null) {
+                open(0);
+            } else {
+                open(existing.lastKey());
+            }
+        }
+
+        /**
+         * @param threadTs the thread's ts for replies, 0 otherwise
+         */
+        void write(long tsMicros, int user, int flags, long threadTs, String text) throws IOException {
+            if (size >= SEGMENT_LIMIT) {
+                close();
+                open(segment + 1);
+            }
+            out.writeLong(tsMicros);
+            out.writeInt(user);
+            out.writeByte(flags);
+            out.writeLong(threadTs);
+            if (text == null) {
+                out.writeInt(-1);
+                size += 25;
+            } else {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                size += 25 + bytes.length;
+            }
+        }
+
+        private void open(int segment) throws IOException {
+            File file = new File(dir, channel + "." + segment + SEGMENT_SUFFIX);
+            this.segment = segment;
+            this.size = file.length();
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024));
+            if (size == 0) {
+                out.writeInt(MAGIC);
+                size = 4;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        void closeQuietly() {
+            try {
+                close();
+            } catch (IOException ioe) {
+                System.err.println("Unable to close segment for " + channel);
+            }
+        }
+    }
+
+}
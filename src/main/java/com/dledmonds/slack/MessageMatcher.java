@@ -0,0 +1,150 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds every registered pattern in a message's text in a single pass. Processors register the (case sensitive)
+ * substrings they care about and get back a bit each. On first use all the patterns are compiled into one
+ * Aho-Corasick automaton, with a full transition table for ASCII, so the cost per message stays the same however
+ * many patterns there are. One matcher is shared by all the filtering processors, and the match of the message
+ * last seen on each thread is remembered, so the processors handed the same message only scan it once between them.
+ *
+ * @author dledmonds
+ */
+public class MessageMatcher {
+
+    private static final int MAX_PATTERNS = 64;
+    private static final int ASCII = 128;
+
+    private final Map<String, Integer> patterns = new HashMap<>();
+    private final ThreadLocal<LastMatch> lastMatch = ThreadLocal.withInitial(LastMatch::new);
+    private volatile Automaton automaton;
+
+    /**
+     * @return the bit that is set in match results when the pattern occurs, the same bit for a repeated pattern
+     */
+    synchronized long register(String pattern) {
+        if (pattern.isEmpty()) throw new IllegalArgumentException("Empty pattern");
+        Integer bit = patterns.get(pattern);
+        if (bit == null) {
+            if (automaton != null) throw new IllegalStateException("Patterns must be registered before matching");
+            if (patterns.size() == MAX_PATTERNS) throw new IllegalStateException("At most " + MAX_PATTERNS + " patterns");
+            bit = patterns.size();
+            patterns.put(pattern, bit);
+        }
+        return 1L << bit;
+    }
+
+    /**
+     * @return the bits of every registered pattern found in the message's text, 0 when it has none
+     */
+    long matches(Message message) {
+        LastMatch last = lastMatch.get();
+        if (last.message != message) {
+            last.message = message;
+            last.bits = matches(message.getText());
+        }
+        return last.bits;
+    }
+
+    long matches(String text) {
+        if (text == null) return 0;
+        Automaton a = automaton;
+        if (a == null) a = compile();
+        return a.scan(text);
+    }
+
+    private synchronized Automaton compile() {
+        if (automaton == null) automaton = new Automaton(patterns);
+        return automaton;
+    }
+
+    private static class LastMatch {
+        private Message message;
+        private long bits;
+    }
+
+    private static class Automaton {
+        private final int[] ascii; // state * ASCII + char to next state, failure links already followed
+        private final List<Map<Character, Integer>> children = new ArrayList<>();
+        private final int[] fail;
+        private final long[] output;
+        private final long all;
+
+        Automaton(Map<String, Integer> patterns) {
+            children.add(new HashMap<>());
+            List<Long> outputs = new ArrayList<>();
+            outputs.add(0L);
+            long allBits = 0;
+            for (Map.Entry<String, Integer> entry : patterns.entrySet()) {
+                int state = 0;
+                for (char c : entry.getKey().toCharArray()) {
+                    Integer next = children.get(state).get(c);
+                    if (next == null) {
+                        next = children.size();
+                        children.add(new HashMap<>());
+                        outputs.add(0L);
+                        children.get(state).put(c, next);
+                    }
+                    state = next;
+                }
+                outputs.set(state, outputs.get(state) | 1L << entry.getValue());
+                allBits |= 1L << entry.getValue();
+            }
+            all = allBits;
+            int states = children.size();
+            output = new long[states];
+            for (int i = 0; i < states; i++) {
+                output[i] = outputs.get(i);
+            }
+
+            // breadth first, so a state's failure target is always finished before the state itself
+            fail = new int[states];
+            ascii = new int[states * ASCII];
+            Deque<Integer> queue = new ArrayDeque<>();
+            queue.add(0);
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                output[state] |= output[fail[state]];
+                for (Map.Entry<Character, Integer> edge : children.get(state).entrySet()) {
+                    int child = edge.getValue();
+                    fail[child] = state == 0 ? 0 : next(fail[state], edge.getKey());
+                    queue.add(child);
+                }
+                for (char c = 0; c < ASCII; c++) {
+                    Integer child = children.get(state).get(c);
+                    ascii[state * ASCII + c] = child != null ? child : state == 0 ? 0 : ascii[fail[state] * ASCII + c];
+                }
+            }
+        }
+
+        long scan(String text) {
+            long bits = 0;
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                state = c < ASCII ? ascii[state * ASCII + c] : next(state, c);
+                bits |= output[state];
+                if (bits == all) break; // nothing left to find
+            }
+            return bits;
+        }
+
+        private int next(int state, char c) {
+            while (true) {
+                Integer child = children.get(state).get(c);
+                if (child != null) return child;
+                if (state == 0) return 0;
+                state = fail[state];
+            }
+        }
+    }
+
+}
@@ -9,4 +9,19 @@ public interface MessageProcessor {
 
     void seenMessage(String channel, Message message);
 
+    /**
+     * A reply in the thread started by parent. Replies are counted like any other message unless overridden.
+     */
+    default void seenReply(String channel, Message parent, Message reply) {
+        seenMessage(channel, reply);
+    }
+
+    /**
+     * The message fields this processor reads, as MessageRecord bits. When messages are ordered they are only
+     * kept with the fields some processor asked for; ts and user are always kept. Defaults to every field.
+     */
+    default int messageFields() {
+        return MessageRecord.ALL;
+    }
+
 }
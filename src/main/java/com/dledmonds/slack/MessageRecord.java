@@ -0,0 +1,153 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.File;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.common.json.GsonFactory;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compact stand-in for a decoded Message while it waits to be sorted, keeping only the fields the processors have
+ * asked for (see MessageProcessor.messageFields) so blocks, attachments, reactions and the like are dropped as soon
+ * as a page is read. The ts is held as epoch micros and the user as an index into a shared interner. toMessage()
+ * builds a Message with just the kept fields for the processors.
+ *
+ * @author dledmonds
+ */
+public class MessageRecord {
+
+    static final int TEXT = 1;
+    static final int THREAD = 2; // thread_ts
+    static final int FILES = 4;
+    static final int DETAILS = 8; // type, subtype and client_msg_id
+    static final int ALL = -1; // the whole Message, for processors that read anything else
+
+    private static final Gson GSON = GsonFactory.createSnakeCase();
+    private static final Type FILE_LIST = new TypeToken<List<File>>() {}.getType();
+
+    final long ts;
+    final int user; // -1 if the message has none
+    private final long threadTs; // 0 if not kept or not in a thread
+    private final String text;
+    private final Details details;
+    private final Message message; // only when every field is kept
+
+    private MessageRecord(long ts, int user, long threadTs, String text, Details details, Message message) {
+        this.ts = ts;
+        this.user = user;
+        this.threadTs = threadTs;
+        this.text = text;
+        this.details = details;
+        this.message = message;
+    }
+
+    /**
+     * @param fields the fields to keep, bits from this class
+     * @param users where user ids are interned
+     */
+    static MessageRecord of(Message message, int fields, Interner<?> users) {
+        int user = message.getUser() == null ? -1 : users.intern(message.getUser());
+        if (fields == ALL) return new MessageRecord(SlackTs.parseMicros(message.getTs()), user, 0, null, null, message);
+        long threadTs = (fields & THREAD) != 0 && message.getThreadTs() != null ? SlackTs.parseMicros(message.getThreadTs()) : 0;
+        Details details = (fields & (FILES | DETAILS)) == 0 ? null : new Details(
+                (fields & FILES) != 0 ? message.getFiles() : null,
+                (fields & DETAILS) != 0 ? message.getType() : null,
+                (fields & DETAILS) != 0 ? message.getSubtype() : null,
+                (fields & DETAILS) != 0 ? message.getClientMsgId() : null);
+        return new MessageRecord(SlackTs.parseMicros(message.getTs()), user, threadTs,
+                (fields & TEXT) != 0 ? message.getText() : null, details, null);
+    }
+
+    /**
+     * @return a new Message holding the kept fields, or the original if every field was kept
+     */
+    Message toMessage(Interner<?> users) {
+        if (message != null) return message;
+        Message m = new Message();
+        m.setTs(SlackTs.format(ts));
+        if (user >= 0) m.setUser(users.idOf(user));
+        if (threadTs != 0) m.setThreadTs(SlackTs.format(threadTs));
+        m.setText(text);
+        if (details != null) {
+            m.setFiles(details.files);
+            m.setType(details.type);
+            m.setSubtype(details.subtype);
+            m.setClientMsgId(details.clientMsgId);
+        }
+        return m;
+    }
+
+    void write(DataOutput out, Interner<?> users) throws IOException {
+        out.writeLong(ts);
+        out.writeUTF(user < 0 ? "" : users.idOf(user)); // ids rather than indexes, runs can outlive the interner
+        out.writeByte((threadTs != 0 ? 1 : 0) | (text != null ? 2 : 0) | (details != null ? 4 : 0) | (message != null ? 8 : 0));
+        if (threadTs != 0) out.writeLong(threadTs);
+        if (text != null) writeString(out, text);
+        if (details != null) {
+            writeString(out, details.files == null ? null : GSON.toJson(details.files, FILE_LIST));
+            writeString(out, details.type);
+            writeString(out, details.subtype);
+            writeString(out, details.clientMsgId);
+        }
+        if (message != null) writeString(out, GSON.toJson(message));
+    }
+
+    static MessageRecord read(DataInput in, Interner<?> users) throws IOException {
+        long ts = in.readLong();
+        String userId = in.readUTF();
+        int present = in.readByte();
+        long threadTs = (present & 1) != 0 ? in.readLong() : 0;
+        String text = (present & 2) != 0 ? readString(in) : null;
+        Details details = null;
+        if ((present & 4) != 0) {
+            String files = readString(in);
+            details = new Details(files == null ? null : GSON.fromJson(files, FILE_LIST), readString(in), readString(in),
+                    readString(in));
+        }
+        Message message = (present & 8) != 0 ? GSON.fromJson(readString(in), Message.class) : null;
+        return new MessageRecord(ts, userId.isEmpty() ? -1 : users.intern(userId), threadTs, text, details, message);
+    }
+
+    /**
+     * Nullable and unlike writeUTF not limited to 64K, message text can be longer.
+     */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Details {
+        private final List<File> files;
+        private final String type;
+        private final String subtype;
+        private final String clientMsgId;
+
+        Details(List<File> files, String type, String subtype, String clientMsgId) {
+            this.files = files;
+            this.type = type;
+            this.subtype = subtype;
+            this.clientMsgId = clientMsgId;
+        }
+    }
+
+}
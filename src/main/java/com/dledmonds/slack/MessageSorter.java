@@ -0,0 +1,171 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * External merge sort of messages by timestamp. At most runSize messages are held in memory, anything
+ * beyond that is sorted and spilled to temporary run files which are merged back together on read. Given a run
+ * directory the runs are kept there instead and outlive the sorter, so a checkpoint can refer to them and a later
+ * sorter can pick them up again. Messages are held, and spilled, as MessageRecords with just the fields asked for.
+ *
+ * @author dledmonds
+ */
+public class MessageSorter implements Closeable {
+
+    private static final Comparator<MessageRecord> TS_ORDER = (MessageRecord r1, MessageRecord r2) -> Long.compare(r1.ts, r2.ts);
+    private static final int RUN_MAGIC = 0x534c4b52; // SLKR
+
+    private final int runSize;
+    private final File runDir;
+    private final int fields;
+    private final Interner<?> users;
+    private List<MessageRecord> buffer = new ArrayList<>();
+    private List<File> runFiles = new ArrayList<>();
+
+    MessageSorter(int runSize) {
+        this(runSize, null, MessageRecord.ALL, new Interner<>());
+    }
+
+    /**
+     * @param runDir where runs are kept, null for temporary files deleted on close
+     * @param fields the message fields to keep, see MessageRecord
+     * @param users where user ids are interned, may be shared between sorters
+     */
+    MessageSorter(int runSize, File runDir, int fields, Interner<?> users) {
+        this.runSize = runSize;
+        this.runDir = runDir;
+        this.fields = fields;
+        this.users = users;
+    }
+
+    /**
+     * Adds the runs of an earlier sorter with the same run directory.
+     */
+    void adopt(List<File> runs) {
+        runFiles.addAll(runs);
+    }
+
+    /**
+     * Spills whatever is held in memory so that every message added so far is in a run file.
+     *
+     * @return all the run files
+     */
+    List<File> checkpoint() throws IOException {
+        if (!buffer.isEmpty()) spill();
+        return getRunFiles();
+    }
+
+    List<File> getRunFiles() {
+        return new ArrayList<>(runFiles);
+    }
+
+    void addAll(List<Message> messages) throws IOException {
+        for (Message message : messages) {
+            buffer.add(MessageRecord.of(message, fields, users));
+            if (buffer.size() >= runSize) spill();
+        }
+    }
+
+    /**
+     * Hands over a new Message per record, each built once with the fields kept.
+     */
+    void forEachSorted(Consumer<Message> consumer) throws IOException {
+        buffer.sort(TS_ORDER);
+        if (runFiles.isEmpty()) {
+            for (MessageRecord record : buffer) {
+                consumer.accept(record.toMessage(users));
+            }
+            buffer.clear();
+            return;
+        }
+        if (!buffer.isEmpty()) spill();
+
+        // k-way merge, one buffered stream and one record per run in memory
+        PriorityQueue<Run> heads = new PriorityQueue<>((Run r1, Run r2) -> TS_ORDER.compare(r1.head, r2.head));
+        List<Run> runs = new ArrayList<>();
+        try {
+            for (File runFile : runFiles) {
+                Run run = new Run(runFile);
+                runs.add(run);
+                if (run.advance()) heads.add(run);
+            }
+            while (!heads.isEmpty()) {
+                Run run = heads.poll();
+                consumer.accept(run.head.toMessage(users));
+                if (run.advance()) heads.add(run);
+            }
+        } finally {
+            for (Run run : runs) {
+                run.in.close();
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        buffer.sort(TS_ORDER);
+        File runFile;
+        if (runDir == null) {
+            runFile = File.createTempFile("slack-messages-", ".run");
+            runFile.deleteOnExit();
+        } else {
+            runDir.mkdirs();
+            runFile = File.createTempFile("slack-messages-", ".run", runDir);
+        }
+        runFiles.add(runFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(runFile.toPath())))) {
+            out.writeInt(RUN_MAGIC);
+            out.writeInt(buffer.size());
+            for (MessageRecord record : buffer) {
+                record.write(out, users);
+            }
+        }
+        System.out.println("Spilled " + buffer.size() + " messages to " + runFile.getName());
+        buffer = new ArrayList<>();
+    }
+
+    @Override
+    public void close() {
+        buffer.clear();
+        if (runDir == null) {
+            for (File runFile : runFiles) {
+                runFile.delete();
+            }
+        }
+        runFiles.clear();
+    }
+
+    private class Run {
+        private final DataInputStream in;
+        private int remaining;
+        private MessageRecord head;
+
+        Run(File runFile) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(runFile.toPath())));
+            if (in.readInt() != RUN_MAGIC) {
+                in.close();
+                throw new IOException(runFile + " is not a message run");
+            }
+            this.remaining = in.readInt();
+        }
+
+        boolean advance() throws IOException {
+            head = remaining-- > 0 ? MessageRecord.read(in, users) : null;
+            return head != null;
+        }
+    }
+
+}
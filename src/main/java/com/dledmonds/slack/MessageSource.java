@@ -0,0 +1,17 @@
+package com.dledmonds.slack;
+
+import java.io.IOException;
+
+/**
+ * Somewhere other than the Slack API that users, channels and messages can be replayed from.
+ *
+ * @author dledmonds
+ */
+public interface MessageSource {
+
+    /**
+     * Feeds everything in this source to the engine's processors, users first and each channel before its messages.
+     */
+    void replay(SlackEngine engine) throws IOException;
+
+}
@@ -0,0 +1,203 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.methods.SlackApiException;
+import com.github.seratch.jslack.common.json.GsonFactory;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of slow-changing directory listings (users.list, conversations.list/info) kept between runs. Each
+ * entry is a gzipped JSON array plus a small .meta file holding when it was fetched and a fingerprint of its contents.
+ * Entries younger than the TTL are used without calling Slack. Older entries are either fetched again before being
+ * returned or, with background refresh, returned as they are while a fresh copy is fetched for the next run. A
+ * refetch that matches the fingerprint only moves the fetched time on, much like a 304 for an ETag.
+ *
+ * @author dledmonds
+ */
+public class MetadataCache {
+
+    private final Gson gson = GsonFactory.createSnakeCase();
+    private final File dir;
+    private final long ttlMillis;
+    private final boolean backgroundRefresh;
+    private final List<Future<?>> refreshes = new ArrayList<>();
+    private ExecutorService refresher;
+
+    MetadataCache(File dir, long ttlMillis, boolean backgroundRefresh) {
+        this.dir = dir;
+        this.ttlMillis = ttlMillis;
+        this.backgroundRefresh = backgroundRefresh;
+    }
+
+    /**
+     * @return the cached list for key if it can be used, otherwise whatever the fetcher returns (which is then cached)
+     */
+    <T> List<T> get(String key, Class<T> type, Fetcher<T> fetcher) throws IOException, SlackApiException {
+        Properties meta = readMeta(key);
+        if (meta != null) {
+            long age = System.currentTimeMillis() - Long.parseLong(meta.getProperty("fetched"));
+            if (age < ttlMillis) {
+                List<T> items = readItems(key, type);
+                System.out.println("Using cached " + key + " (" + items.size() + " items, " + age / 60000 + " minutes old)");
+                return items;
+            }
+            if (backgroundRefresh) {
+                List<T> items = readItems(key, type);
+                System.out.println("Using stale cached " + key + " (" + items.size() + " items), refreshing in the background");
+                refreshLater(key, type, fetcher, meta);
+                return items;
+            }
+        }
+        List<T> items = fetcher.fetch();
+        store(key, type, items, meta);
+        return items;
+    }
+
+    /**
+     * Waits for any background refreshes to be written. A refresh that fails is reported and the old entry kept.
+     */
+    void awaitRefresh() {
+        synchronized (refreshes) {
+            for (Future<?> refresh : refreshes) {
+                try {
+                    refresh.get();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ee) {
+                    System.err.println("Background metadata refresh failed: " + ee.getCause());
+                }
+            }
+            refreshes.clear();
+            if (refresher != null) refresher.shutdown();
+            refresher = null;
+        }
+    }
+
+    private <T> void refreshLater(String key, Class<T> type, Fetcher<T> fetcher, Properties meta) {
+        synchronized (refreshes) {
+            if (refresher == null) {
+                refresher = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "slack-metadata-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            refreshes.add(refresher.submit(() -> {
+                store(key, type, fetcher.fetch(), meta);
+                return null;
+            }));
+        }
+    }
+
+    private <T> void store(String key, Class<T> type, List<T> items, Properties oldMeta) throws IOException {
+        String fingerprint = fingerprint(type, items);
+        boolean unchanged = oldMeta != null && fingerprint.equals(oldMeta.getProperty("fingerprint"));
+        if (!unchanged) {
+            dir.mkdirs();
+            Utils.writeAtomically(itemsFile(key), out -> {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, 65536);
+                writeItems(new OutputStreamWriter(gzip, StandardCharsets.UTF_8), type, items);
+                gzip.finish();
+            });
+        }
+        Properties meta = new Properties();
+        meta.setProperty("fetched", Long.toString(System.currentTimeMillis()));
+        meta.setProperty("fingerprint", fingerprint);
+        meta.setProperty("count", Integer.toString(items.size()));
+        Utils.writeAtomically(metaFile(key), out -> meta.store(out, "slack-statistics metadata cache"));
+        System.out.println((unchanged ? "Revalidated cached " : "Cached ") + key + " (" + items.size() + " items)");
+    }
+
+    private Properties readMeta(String key) throws IOException {
+        if (!metaFile(key).exists() || !itemsFile(key).exists()) return null;
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(metaFile(key).toPath())) {
+            meta.load(in);
+        }
+        return meta.getProperty("fetched") == null ? null : meta;
+    }
+
+    private <T> List<T> readItems(String key, Class<T> type) throws IOException {
+        List<T> items = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(itemsFile(key).toPath()), 65536), StandardCharsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                items.add(gson.fromJson(reader, type));
+            }
+            reader.endArray();
+        }
+        return items;
+    }
+
+    private <T> void writeItems(Writer out, Class<T> type, List<T> items) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (T item : items) {
+            gson.toJson(item, type, writer);
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    private <T> String fingerprint(Class<T> type, List<T> items) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
+        }
+        OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        writeItems(new OutputStreamWriter(new DigestOutputStream(discard, digest), StandardCharsets.UTF_8), type, items);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private File itemsFile(String key) {
+        return new File(dir, key + ".json.gz");
+    }
+
+    private File metaFile(String key) {
+        return new File(dir, key + ".meta");
+    }
+
+    interface Fetcher<T> {
+        List<T> fetch() throws IOException, SlackApiException;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.methods.SlackApiException;
+import com.github.seratch.jslack.common.http.SlackHttpClient;
+import com.github.seratch.jslack.common.json.GsonFactory;
+import okhttp3.FormBody;
+import okhttp3.MediaType;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the time of each Slack API call into waiting for the response headers (api.METHOD.http), reading the body
+ * (api.METHOD.read, its size in api.METHOD.bytes) and decoding the JSON (api.METHOD.decode), so slow networks can be told apart from large pages.
+ * Responses are parsed the same way as SlackHttpClient does.
+ *
+ * @author dledmonds
+ */
+class MeteredHttpClient extends SlackHttpClient {
+
+    private final Metrics metrics;
+
+    MeteredHttpClient(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response postForm(String url, FormBody formBody) throws IOException {
+        Metrics.Timer timer = metrics.timer("api." + method(url) + ".http");
+        long start = timer.start();
+        try {
+            return super.postForm(url, formBody);
+        } finally {
+            timer.stop(start);
+        }
+    }
+
+    @Override
+    public Response postFormWithBearerHeader(String url, String token, FormBody formBody) throws IOException {
+        Metrics.Timer timer = metrics.timer("api." + method(url) + ".http");
+        long start = timer.start();
+        try {
+            return super.postFormWithBearerHeader(url, token, formBody);
+        } finally {
+            timer.stop(start);
+        }
+    }
+
+    @Override
+    public <T> T parseJsonResponse(Response response, Class<T> clazz) throws IOException, SlackApiException {
+        String method = method(response.request().url().toString());
+        Metrics.Timer read = metrics.timer("api." + method + ".read");
+        long start = read.start();
+        MediaType type = response.body().contentType();
+        byte[] bytes = response.body().bytes();
+        read.stop(start);
+        metrics.histogram("api." + method + ".bytes").record(bytes.length);
+        String body = new String(bytes, type == null ? StandardCharsets.UTF_8 : type.charset(StandardCharsets.UTF_8));
+        if (response.code() != 200) throw new SlackApiException(response, body);
+
+        runHttpResponseListeners(response, body);
+        Metrics.Timer decode = metrics.timer("api." + method + ".decode");
+        start = decode.start();
+        try {
+            return GsonFactory.createSnakeCase(getConfig()).fromJson(body, clazz);
+        } finally {
+            decode.stop(start);
+        }
+    }
+
+    private static String method(String url) {
+        int query = url.indexOf('?');
+        String path = query < 0 ? url : url.substring(0, query);
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+}
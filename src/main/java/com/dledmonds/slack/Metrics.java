@@ -0,0 +1,218 @@
+package com.dledmonds.slack;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters, histograms and timers for a run, e.g. the latency of each API method, the messages per channel and
+ * the time each processor spends per message. Recording is lock free so the hot paths can hold on to a metric and
+ * update it from any thread. Histograms keep counts in log buckets, 8 per power of two, so percentiles are within
+ * about 12% and memory is fixed however many values are recorded.
+ *
+ * @author dledmonds
+ */
+public class Metrics {
+
+    /**
+     * Processor calls are too quick to time every one without slowing them down noticeably, so one in this many is.
+     */
+    static final int PROCESSOR_SAMPLE = 16;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Processors are told apart by class, so two processors of the same class share a timer. The timer only holds
+     * the sampled calls, see PROCESSOR_SAMPLE.
+     */
+    Timer processorTimer(Object processor) {
+        return timer("processor." + processor.getClass().getSimpleName() + ".seenMessage");
+    }
+
+    /**
+     * @return the counter's value, 0 if nothing has been counted under that name
+     */
+    long count(String name) {
+        Counter counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    long elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * Writes every metric as a JSON object, names sorted, timers in milliseconds.
+     */
+    void writeJson(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("elapsedMillis").value(elapsedMillis());
+
+        writer.name("counters").beginObject();
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(counters).entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue().get());
+        }
+        writer.endObject();
+
+        writer.name("histograms").beginObject();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            writer.name(entry.getKey());
+            writeHistogram(writer, entry.getValue(), 1);
+        }
+        writer.endObject();
+
+        writer.name("timers").beginObject();
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+            writer.name(entry.getKey());
+            writeHistogram(writer, entry.getValue(), 1000000);
+        }
+        writer.endObject();
+
+        writer.endObject();
+        writer.flush();
+    }
+
+    private void writeHistogram(JsonWriter writer, Histogram histogram, double unit) throws IOException {
+        long count = histogram.count();
+        writer.beginObject();
+        writer.name("count").value(count);
+        writer.name("total").value(histogram.sum() / unit);
+        writer.name("mean").value(count == 0 ? 0 : histogram.sum() / unit / count);
+        writer.name("p50").value(histogram.quantile(0.5) / unit);
+        writer.name("p90").value(histogram.quantile(0.9) / unit);
+        writer.name("p99").value(histogram.quantile(0.99) / unit);
+        writer.name("max").value(histogram.max() / unit);
+        writer.endObject();
+    }
+
+    static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long n) {
+            value.add(n);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    static class Histogram {
+        private static final int SUB_BITS = 3; // 8 buckets per power of two
+        private static final int LINEAR = 2 << SUB_BITS; // values below this get a bucket each
+        private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * (1 << SUB_BITS);
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value must not be negative, negative values are recorded as 0
+         */
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // another thread raised it, check again
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sum() {
+            return sum.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @return upper bound of the bucket holding the value at the given rank, never more than the max seen
+         */
+        long quantile(double q) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long)Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(upperBound(i), max());
+            }
+            return max();
+        }
+
+        private static int bucket(long value) {
+            if (value < LINEAR) return (int)value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR) return bucket;
+            int exponent = (bucket - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+            long sub = (bucket - LINEAR) % (1 << SUB_BITS);
+            long lower = (1L << exponent) + (sub << (exponent - SUB_BITS));
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    /**
+     * Histogram of durations in nanoseconds.
+     */
+    static class Timer extends Histogram {
+        long start() {
+            return System.nanoTime();
+        }
+
+        /**
+         * @param start value returned by start()
+         */
+        void stop(long start) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.File;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.User;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * How StreamOutputProcessor lays out each record. Every method appends one complete line, newline included, to a
+ * builder owned by the writer thread. A format instance is only used by one writer so it may keep state.
+ *
+ * @author dledmonds
+ */
+public abstract class OutputFormat {
+
+    /**
+     * @param name text, ndjson or csv
+     */
+    public static OutputFormat forName(String name, ZoneId zone) {
+        switch (name.toLowerCase()) {
+            case "text": return new Text(zone);
+            case "ndjson": return new Ndjson();
+            case "csv": return new Csv();
+            default: throw new IllegalArgumentException("Unknown output format " + name);
+        }
+    }
+
+    /**
+     * @return the usual file extension for this format, without the dot
+     */
+    abstract String extension();
+
+    void header(StringBuilder sb) {
+    }
+
+    abstract void channel(Conversation conversation, StringBuilder sb);
+
+    abstract void message(String channel, Message message, StringBuilder sb);
+
+    abstract void user(User user, StringBuilder sb);
+
+    /**
+     * The original human readable log lines, timestamps laid out as Date.toString() does but in a fixed zone.
+     */
+    static class Text extends OutputFormat {
+        private final DateTimeFormatter formatter;
+        private long lastSecond = Long.MIN_VALUE;
+        private String lastFormatted;
+
+        Text(ZoneId zone) {
+            this.formatter = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US).withZone(zone);
+        }
+
+        @Override
+        String extension() {
+            return "log";
+        }
+
+        @Override
+        void channel(Conversation conversation, StringBuilder sb) {
+            sb.append("CHANNEL: ");
+            if (conversation.isArchived()) {
+                sb.append(conversation.getName()).append(" is archived\n");
+                return;
+            }
+            sb.append(conversation.getId()).append(" - ").append(conversation.getName());
+            if (conversation.getPreviousNames() != null) {
+                for (String prevName : conversation.getPreviousNames()) {
+                    sb.append(", ").append(prevName);
+                }
+            }
+            sb.append(" - Users: ").append(conversation.getNumOfMembers()).append('\n');
+        }
+
+        @Override
+        void message(String channel, Message message, StringBuilder sb) {
+            sb.append("MESSAGE: ").append(formatTs(message.getTs()))
+                    .append(" - ").append(message.getClientMsgId()).append('/').append(message.getUser())
+                    .append(" - ").append(message.getType()).append(" - ").append(message.getText());
+            if (message.getFiles() != null) {
+                for (File file : message.getFiles()) {
+                    sb.append("; File = ").append(file.getName()).append(" - ").append(file.getPermalink());
+                }
+            }
+            sb.append('\n');
+        }
+
+        @Override
+        void user(User user, StringBuilder sb) {
+            sb.append("USER: ");
+            if (user.isDeleted()) {
+                sb.append(user.getName()).append(" is deleted\n");
+            } else if (user.isBot()) {
+                sb.append(user.getName()).append(" is a bot\n");
+            } else {
+                sb.append(user.getId()).append(" - ").append(user.getName()).append('\n');
+            }
+        }
+
+        private String formatTs(String ts) {
+            // consecutive messages are usually close together, so only format when the second changes
+            long second = Math.floorDiv(SlackTs.parseMicros(ts), 1000000L);
+            if (second != lastSecond) {
+                lastFormatted = formatter.format(Instant.ofEpochSecond(second));
+                lastSecond = second;
+            }
+            return lastFormatted;
+        }
+    }
+
+    /**
+     * One JSON object per line, tagged with a record field.
+     */
+    static class Ndjson extends OutputFormat {
+        @Override
+        String extension() {
+            return "ndjson";
+        }
+
+        @Override
+        void channel(Conversation conversation, StringBuilder sb) {
+            sb.append("{\"record\":\"channel\",\"id\":");
+            string(conversation.getId(), sb);
+            sb.append(",\"name\":");
+            string(conversation.getName(), sb);
+            sb.append(",\"archived\":").append(conversation.isArchived());
+            sb.append(",\"members\":").append(conversation.getNumOfMembers());
+            sb.append("}\n");
+        }
+
+        @Override
+        void message(String channel, Message message, StringBuilder sb) {
+            sb.append("{\"record\":\"message\",\"channel\":");
+            string(channel, sb);
+            sb.append(",\"ts\":");
+            string(message.getTs(), sb);
+            sb.append(",\"user\":");
+            string(message.getUser(), sb);
+            sb.append(",\"type\":");
+            string(message.getType(), sb);
+            sb.append(",\"subtype\":");
+            string(message.getSubtype(), sb);
+            sb.append(",\"text\":");
+            string(message.getText(), sb);
+            if (message.getFiles() != null) {
+                sb.append(",\"files\":[");
+                for (int i = 0; i < message.getFiles().size(); i++) {
+                    if (i > 0) sb.append(',');
+                    string(message.getFiles().get(i).getPermalink(), sb);
+                }
+                sb.append(']');
+            }
+            sb.append("}\n");
+        }
+
+        @Override
+        void user(User user, StringBuilder sb) {
+            sb.append("{\"record\":\"user\",\"id\":");
+            string(user.getId(), sb);
+            sb.append(",\"name\":");
+            string(user.getName(), sb);
+            sb.append(",\"real_name\":");
+            string(user.getRealName(), sb);
+            sb.append(",\"deleted\":").append(user.isDeleted());
+            sb.append(",\"bot\":").append(user.isBot());
+            sb.append("}\n");
+        }
+
+        private static void string(String value, StringBuilder sb) {
+            if (value == null) {
+                sb.append("null");
+                return;
+            }
+            sb.append('"');
+            int plain = 0;
+            while (plain < value.length() && value.charAt(plain) >= 0x20 && value.charAt(plain) != '"'
+                    && value.charAt(plain) != '\\') {
+                plain++;
+            }
+            sb.append(value, 0, plain); // most text needs no escaping, so copy the leading run in one go
+            for (int i = plain; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int)c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+    /**
+     * RFC 4180 style CSV with one column layout shared by every record type, unused columns left empty.
+     */
+    static class Csv extends OutputFormat {
+        @Override
+        String extension() {
+            return "csv";
+        }
+
+        @Override
+        void header(StringBuilder sb) {
+            sb.append("record,id,channel,ts,user,name,text\n");
+        }
+
+        @Override
+        void channel(Conversation conversation, StringBuilder sb) {
+            sb.append("channel,");
+            field(conversation.getId(), sb);
+            sb.append(",,,,");
+            field(conversation.getName(), sb);
+            sb.append(",\n");
+        }
+
+        @Override
+        void message(String channel, Message message, StringBuilder sb) {
+            sb.append("message,");
+            field(message.getClientMsgId(), sb);
+            sb.append(',');
+            field(channel, sb);
+            sb.append(',');
+            field(message.getTs(), sb);
+            sb.append(',');
+            field(message.getUser(), sb);
+            sb.append(',');
+            sb.append(',');
+            field(message.getText(), sb);
+            sb.append('\n');
+        }
+
+        @Override
+        void user(User user, StringBuilder sb) {
+            sb.append("user,");
+            field(user.getId(), sb);
+            sb.append(",,,,");
+            field(user.getName(), sb);
+            sb.append(",\n");
+        }
+
+        private static void field(String value, StringBuilder sb) {
+            if (value == null) return;
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; i++) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                sb.append(value);
+                return;
+            }
+            sb.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"') sb.append('"');
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+
+}
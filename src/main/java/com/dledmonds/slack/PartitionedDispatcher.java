@@ -0,0 +1,165 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Fans batches of messages out round robin to a fixed set of worker threads. Each worker feeds its own partial
+ * aggregate of every mergeable processor, and the partials are merged into the processors by finish().
+ *
+ * @author dledmonds
+ */
+class PartitionedDispatcher {
+
+    private static final Batch END = new Batch(null, null);
+
+    private final List<MergeableProcessor<?>> processors;
+    private final Metrics metrics;
+    private final Worker[] workers;
+    private int next;
+    private volatile Throwable failure;
+
+    PartitionedDispatcher(int threads, int queueDepth, List<MergeableProcessor<?>> processors, Metrics metrics) {
+        this.processors = processors;
+        this.metrics = metrics;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, queueDepth);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues a batch for the next worker, blocking while that worker is too far behind. The list must not be
+     * changed afterwards.
+     */
+    void dispatch(String channel, List<Message> messages) {
+        if (messages.isEmpty()) return;
+        Worker worker = workers[next];
+        next = (next + 1) % workers.length;
+        try {
+            worker.queue.put(new Batch(channel, messages));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted dispatching messages for " + channel, ie);
+        }
+    }
+
+    /**
+     * Waits for every queued batch to be processed and merges the workers' partials into the processors. Not
+     * interruptible, batches already queued count towards a checkpoint and would be lost with the partials.
+     */
+    void finish() {
+        boolean interrupted = false;
+        for (Worker worker : workers) {
+            while (true) {
+                try {
+                    worker.queue.put(END);
+                    break;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Worker worker : workers) {
+            while (worker.isAlive()) {
+                try {
+                    worker.join();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        for (Worker worker : workers) {
+            for (Shard<?> shard : worker.shards) {
+                shard.merge();
+            }
+        }
+        if (failure != null) throw new IllegalStateException("Message dispatch failed", failure);
+    }
+
+    private class Worker extends Thread {
+        private final BlockingQueue<Batch> queue;
+        private final List<Shard<?>> shards = new ArrayList<>();
+
+        Worker(int id, int queueDepth) {
+            super("slack-dispatch-" + id);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<>(queueDepth);
+            for (MergeableProcessor<?> processor : processors) {
+                shards.add(Shard.of(processor, metrics.processorTimer(processor)));
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                if (batch == END) return;
+                if (failure != null) continue; // keep draining so the engine never blocks on a dead worker
+                try {
+                    for (Message message : batch.messages) {
+                        if (message.getUser() == null) continue; // only process messages sent by users/bots
+                        for (Shard<?> shard : shards) {
+                            shard.seenMessage(batch.channel, message);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+        }
+    }
+
+    private static class Batch {
+        private final String channel;
+        private final List<Message> messages;
+
+        Batch(String channel, List<Message> messages) {
+            this.channel = channel;
+            this.messages = messages;
+        }
+    }
+
+    private static class Shard<P> {
+        private final MergeableProcessor<P> processor;
+        private final P partial;
+        private final Metrics.Timer timer;
+        private long calls;
+
+        private Shard(MergeableProcessor<P> processor, Metrics.Timer timer) {
+            this.processor = processor;
+            this.partial = processor.newPartial();
+            this.timer = timer;
+        }
+
+        static <P> Shard<P> of(MergeableProcessor<P> processor, Metrics.Timer timer) {
+            return new Shard<>(processor, timer);
+        }
+
+        void seenMessage(String channel, Message message) {
+            if (calls++ % Metrics.PROCESSOR_SAMPLE != 0) {
+                processor.seenMessage(partial, channel, message);
+                return;
+            }
+            long start = timer.start();
+            processor.seenMessage(partial, channel, message);
+            timer.stop(start);
+        }
+
+        void merge() {
+            processor.merge(partial);
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.dledmonds.slack;
+
+/**
+ * Counts only the messages whose text contains at least one of a set of patterns, e.g. mentions, links or a
+ * keyword list. Patterns are matched by a MessageMatcher that can be shared with other filtering processors.
+ *
+ * @author dledmonds
+ */
+public class PatternMessageCountProcessor extends UserMessageCountProcessor {
+
+    protected PatternMessageCountProcessor(int limit, String title, UserRegistry users, MessageMatcher matcher,
+                                           String ... patterns) {
+        super(PipelineConfig.Statistic.userCount(title, title, limit, patterns), users, matcher);
+    }
+
+}
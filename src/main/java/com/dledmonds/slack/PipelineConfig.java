@@ -0,0 +1,169 @@
+package com.dledmonds.slack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The statistics a PipelineProcessor computes, each one a metric summed over the messages that pass its filters and
+ * grouped by its dimensions. Read from properties like
+ * <pre>
+ * slack.stats=mentions,reply-length
+ * slack.stat.mentions.title=User Mentions Count
+ * slack.stat.mentions.by=channel,user
+ * slack.stat.mentions.where=text:&lt;@
+ * slack.stat.reply-length.by=user
+ * slack.stat.reply-length.where=reply;!files
+ * slack.stat.reply-length.metric=characters
+ * </pre>
+ * by is any of channel, user, day, hour (of the day) and weekday, channel,user if not given. where is a ; separated
+ * list of conditions that must all hold: text:A|B (the text contains A or B, case sensitive), reply (a thread reply)
+ * and files (has files), any of them negated with a leading !. metric is messages (the default) or characters of text.
+ * top is the most users listed per group, 10 if not given.
+ *
+ * @author dledmonds
+ */
+public class PipelineConfig {
+
+    private final List<Statistic> statistics = new ArrayList<>();
+
+    /**
+     * @return the statistics listed in slack.stats, or none if it isn't set
+     */
+    static PipelineConfig fromProperties(Properties p) {
+        PipelineConfig config = new PipelineConfig();
+        for (String name : p.getProperty("slack.stats", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) continue;
+            String prefix = "slack.stat." + name + ".";
+            try {
+                List<Dimension> dimensions = new ArrayList<>();
+                for (String dimension : p.getProperty(prefix + "by", "channel,user").split(",")) {
+                    if (!dimension.trim().isEmpty()) dimensions.add(Dimension.valueOf(dimension.trim().toUpperCase()));
+                }
+                List<Condition> conditions = new ArrayList<>();
+                for (String condition : p.getProperty(prefix + "where", "").split(";")) {
+                    if (!condition.trim().isEmpty()) conditions.add(Condition.parse(condition.trim()));
+                }
+                config.add(new Statistic(name, p.getProperty(prefix + "title", name), dimensions, conditions,
+                        Metric.valueOf(p.getProperty(prefix + "metric", "messages").trim().toUpperCase()),
+                        Integer.parseInt(p.getProperty(prefix + "top", "10").trim())));
+            } catch (IllegalArgumentException iae) { // includes bad numbers
+                throw new IllegalArgumentException("Invalid statistic " + name + ": " + iae.getMessage(), iae);
+            }
+        }
+        return config;
+    }
+
+    void add(Statistic statistic) {
+        for (Statistic s : statistics) {
+            if (s.name.equals(statistic.name)) throw new IllegalArgumentException("Duplicate statistic " + statistic.name);
+        }
+        statistics.add(statistic);
+    }
+
+    List<Statistic> statistics() {
+        return Collections.unmodifiableList(statistics);
+    }
+
+    boolean isEmpty() {
+        return statistics.isEmpty();
+    }
+
+    /**
+     * What messages are grouped by, with the bits each takes in a packed group key and the lowest value those bits
+     * hold. Days since 1970 are packed from 1435 years before it, so any real date fits.
+     */
+    enum Dimension {
+        CHANNEL(20, 0), USER(24, 0), DAY(20, -(1 << 19)), HOUR(5, 0), WEEKDAY(3, 0);
+
+        final int bits;
+        final long min;
+
+        Dimension(int bits, long min) {
+            this.bits = bits;
+            this.min = min;
+        }
+    }
+
+    enum Metric {
+        MESSAGES, CHARACTERS
+    }
+
+    static class Condition {
+        enum Kind {
+            TEXT, REPLY, FILES
+        }
+
+        final Kind kind;
+        final List<String> patterns; // for TEXT
+        final boolean negated;
+
+        Condition(Kind kind, List<String> patterns, boolean negated) {
+            if (kind == Kind.TEXT && patterns.isEmpty()) throw new IllegalArgumentException("text: needs a pattern");
+            this.kind = kind;
+            this.patterns = Collections.unmodifiableList(new ArrayList<>(patterns));
+            this.negated = negated;
+        }
+
+        static Condition parse(String condition) {
+            boolean negated = condition.startsWith("!");
+            if (negated) condition = condition.substring(1).trim();
+            if (condition.startsWith("text:")) {
+                List<String> patterns = new ArrayList<>();
+                for (String pattern : condition.substring("text:".length()).split("\\|")) {
+                    if (!pattern.isEmpty()) patterns.add(pattern);
+                }
+                return new Condition(Kind.TEXT, patterns, negated);
+            }
+            return new Condition(Kind.valueOf(condition.toUpperCase()), Collections.emptyList(), negated);
+        }
+
+        /**
+         * @return the condition without its negation, conditions that are the same apart from that are evaluated once
+         */
+        String test() {
+            return kind == Kind.TEXT ? "text:" + String.join("|", patterns) : kind.name();
+        }
+    }
+
+    static class Statistic {
+        final String name;
+        final String title;
+        final List<Dimension> dimensions;
+        final List<Condition> conditions;
+        final Metric metric;
+        final int top;
+
+        Statistic(String name, String title, List<Dimension> dimensions, List<Condition> conditions, Metric metric,
+                  int top) {
+            int bits = 0;
+            for (Dimension dimension : dimensions) {
+                bits += dimension.bits;
+                if (dimensions.indexOf(dimension) != dimensions.lastIndexOf(dimension)) {
+                    throw new IllegalArgumentException("Repeated dimension " + dimension);
+                }
+            }
+            if (bits > 64) throw new IllegalArgumentException("Too many dimensions " + dimensions);
+            this.name = name;
+            this.title = title;
+            this.dimensions = Collections.unmodifiableList(new ArrayList<>(dimensions));
+            this.conditions = Collections.unmodifiableList(new ArrayList<>(conditions));
+            this.metric = metric;
+            this.top = top;
+        }
+
+        /**
+         * A count of messages by channel and user, optionally only those whose text contains any of the patterns.
+         */
+        static Statistic userCount(String name, String title, int top, String ... patterns) {
+            List<Condition> conditions = patterns.length == 0 ? Collections.emptyList()
+                    : Collections.singletonList(new Condition(Condition.Kind.TEXT, Arrays.asList(patterns), false));
+            return new Statistic(name, title, Arrays.asList(Dimension.CHANNEL, Dimension.USER), conditions,
+                    Metric.MESSAGES, top);
+        }
+    }
+
+}
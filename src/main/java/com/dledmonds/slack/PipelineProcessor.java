@@ -0,0 +1,572 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.User;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes every statistic in a PipelineConfig in one pass over the messages. The statistics are compiled so the
+ * work per message is shared between them: each distinct condition is tested once (text patterns in the shared
+ * MessageMatcher's single scan), the channel and user are looked up once, and statistics grouped by the same
+ * dimensions share one GroupTable, a column each, so a message costs one table lookup per distinct grouping rather
+ * than one per statistic. Each statistic is reported through its own View, which can be snapshotted, ranked and
+ * exported like a dedicated processor.
+ *
+ * @author dledmonds
+ */
+public class PipelineProcessor
+        implements ChannelProcessor, MergeableProcessor<PipelineProcessor.Partial>, UserProcessor {
+
+    private final static String ALL_CHANNELS = "@All-Channels@";
+
+    protected Interner<Conversation> channels = new Interner<>();
+    protected UserRegistry users;
+    protected TimeBuckets timeBuckets;
+    protected MessageMatcher matcher;
+
+    private final Test[] tests; // distinct conditions, bit i of a message's test result is tests[i]
+    private final Group[] groups; // distinct dimension lists
+    private final boolean[] dimensions; // by ordinal, any group needs it
+    private final List<View> views = new ArrayList<>();
+    private final boolean text; // any text conditions
+    private final int fields;
+    private final Partial totals;
+
+    /**
+     * @param zone time zone whose calendar days, hours and weekdays are grouped by
+     * @param matcher where text patterns are registered, shared with other filtering processors
+     */
+    protected PipelineProcessor(PipelineConfig config, UserRegistry users, ZoneId zone, MessageMatcher matcher) {
+        this.users = users;
+        this.timeBuckets = new TimeBuckets(zone);
+        this.matcher = matcher;
+
+        List<Test> tests = new ArrayList<>();
+        List<Group> groups = new ArrayList<>();
+        int fields = 0;
+        for (PipelineConfig.Statistic statistic : config.statistics()) {
+            long mask = 0;
+            long value = 0;
+            for (PipelineConfig.Condition condition : statistic.conditions) {
+                int test = 0;
+                while (test < tests.size() && !tests.get(test).name.equals(condition.test())) test++;
+                if (test == tests.size()) {
+                    if (test == 64) throw new IllegalArgumentException("At most 64 distinct conditions");
+                    tests.add(new Test(condition));
+                }
+                if ((mask & 1L << test) != 0 && ((value & 1L << test) == 0) != condition.negated) {
+                    throw new IllegalArgumentException("Statistic " + statistic.name + " can never match");
+                }
+                mask |= 1L << test;
+                if (!condition.negated) value |= 1L << test;
+                fields |= tests.get(test).fields;
+            }
+            if (statistic.metric == PipelineConfig.Metric.CHARACTERS) fields |= MessageRecord.TEXT;
+
+            Group group = null;
+            for (Group g : groups) {
+                if (g.dimensions.equals(statistic.dimensions)) group = g;
+            }
+            if (group == null) {
+                group = new Group(groups.size(), statistic.dimensions);
+                groups.add(group);
+            }
+            View view = new View(statistic, group, group.columns++, mask, value);
+            group.views.add(view);
+            views.add(view);
+        }
+        this.tests = tests.toArray(new Test[0]);
+        this.groups = groups.toArray(new Group[0]);
+        this.text = tests.stream().anyMatch(test -> test.kind == PipelineConfig.Condition.Kind.TEXT);
+        this.fields = fields;
+        this.dimensions = new boolean[PipelineConfig.Dimension.values().length];
+        for (Group group : this.groups) {
+            for (PipelineConfig.Dimension dimension : group.dimensions) {
+                this.dimensions[dimension.ordinal()] = true;
+            }
+        }
+        this.totals = newPartial();
+    }
+
+    List<View> views() {
+        return Collections.unmodifiableList(views);
+    }
+
+    /**
+     * @return the statistic's view, or null if there is no statistic of that name
+     */
+    View view(String name) {
+        for (View view : views) {
+            if (view.statistic.name.equals(name)) return view;
+        }
+        return null;
+    }
+
+    @Override
+    public int messageFields() {
+        return fields;
+    }
+
+    @Override
+    public void seenChannel(Conversation conversation) {
+        channels.intern(conversation.getId(), conversation);
+    }
+
+    @Override
+    public void seenUser(User user) {
+        users.add(user);
+    }
+
+    @Override
+    public void seenMessage(String channel, Message message) {
+        seenMessage(totals, channel, message);
+    }
+
+    @Override
+    public Partial newPartial() {
+        return new Partial();
+    }
+
+    @Override
+    public void seenMessage(Partial partial, String channel, Message message) {
+        long matched = text ? matcher.matches(message) : 0;
+        long passed = 0;
+        for (int test = 0; test < tests.length; test++) {
+            if (tests[test].test(message, matched)) passed |= 1L << test;
+        }
+
+        boolean valued = false;
+        for (Group group : groups) {
+            int row = -1;
+            for (View view : group.views) {
+                if ((passed & view.mask) != view.value) continue;
+                if (!valued) {
+                    values(partial, channel, message);
+                    valued = true;
+                }
+                if (row < 0) row = partial.tables[group.index].row(group.key(partial.values));
+                partial.tables[group.index].add(row, view.column, view.statistic.metric == PipelineConfig.Metric.MESSAGES
+                        ? 1 : message.getText() == null ? 0 : message.getText().length());
+            }
+        }
+    }
+
+    @Override
+    public void merge(Partial partial) {
+        for (int group = 0; group < groups.length; group++) {
+            totals.tables[group].addAll(partial.tables[group]);
+        }
+    }
+
+    /**
+     * Fills in the message's value for every dimension some group needs, by ordinal.
+     */
+    private void values(Partial partial, String channel, Message message) {
+        long[] values = partial.values;
+        if (dimensions[PipelineConfig.Dimension.CHANNEL.ordinal()]) {
+            if (channel != partial.channelId) { // messages come a channel at a time, so the same String
+                partial.channel = channels.intern(channel);
+                partial.channelId = channel;
+            }
+            values[PipelineConfig.Dimension.CHANNEL.ordinal()] = partial.channel;
+        }
+        if (dimensions[PipelineConfig.Dimension.USER.ordinal()]) {
+            values[PipelineConfig.Dimension.USER.ordinal()] = users.intern(message.getUser());
+        }
+        if (dimensions[PipelineConfig.Dimension.DAY.ordinal()] || dimensions[PipelineConfig.Dimension.WEEKDAY.ordinal()]
+                || dimensions[PipelineConfig.Dimension.HOUR.ordinal()]) {
+            long micros = SlackTs.parseMicros(message.getTs());
+            long day = timeBuckets.day(micros);
+            values[PipelineConfig.Dimension.DAY.ordinal()] = day;
+            values[PipelineConfig.Dimension.WEEKDAY.ordinal()] = Math.floorMod(day + 3, 7L); // 1970-01-01 was a Thursday
+            if (dimensions[PipelineConfig.Dimension.HOUR.ordinal()]) {
+                values[PipelineConfig.Dimension.HOUR.ordinal()] = timeBuckets.hourOfDay(micros);
+            }
+        }
+    }
+
+    /**
+     * One group table per distinct grouping, either the processor's own or a dispatch thread's partial.
+     */
+    class Partial {
+        private final GroupTable[] tables = new GroupTable[groups.length];
+        private final long[] values = new long[PipelineConfig.Dimension.values().length];
+        private String channelId;
+        private int channel;
+
+        Partial() {
+            for (Group group : groups) {
+                tables[group.index] = new GroupTable(group.columns);
+            }
+        }
+    }
+
+    /**
+     * A distinct condition, negated or not by the statistics that use it.
+     */
+    private class Test {
+        private final String name;
+        private final PipelineConfig.Condition.Kind kind;
+        private final int fields;
+        private long patternBits;
+
+        Test(PipelineConfig.Condition condition) {
+            this.name = condition.test();
+            this.kind = condition.kind;
+            for (String pattern : condition.patterns) {
+                patternBits |= matcher.register(pattern);
+            }
+            this.fields = kind == PipelineConfig.Condition.Kind.TEXT ? MessageRecord.TEXT
+                    : kind == PipelineConfig.Condition.Kind.REPLY ? MessageRecord.THREAD : MessageRecord.FILES;
+        }
+
+        /**
+         * @param matched the matcher's result for the message, shared by every text test
+         */
+        boolean test(Message message, long matched) {
+            switch (kind) {
+                case TEXT:
+                    return (matched & patternBits) != 0;
+                case REPLY:
+                    return message.getThreadTs() != null && !message.getThreadTs().equals(message.getTs());
+                default:
+                    return message.getFiles() != null && !message.getFiles().isEmpty();
+            }
+        }
+    }
+
+    /**
+     * Statistics grouped by the same dimensions, the first dimension in the highest bits of the packed key so keys
+     * sort in dimension order.
+     */
+    private static class Group {
+        private final int index;
+        private final List<PipelineConfig.Dimension> dimensions;
+        private final int[] shifts;
+        private final List<View> views = new ArrayList<>();
+        private int columns;
+
+        Group(int index, List<PipelineConfig.Dimension> dimensions) {
+            this.index = index;
+            this.dimensions = dimensions;
+            this.shifts = new int[dimensions.size()];
+            int shift = 0;
+            for (int d = dimensions.size() - 1; d >= 0; d--) {
+                shifts[d] = shift;
+                shift += dimensions.get(d).bits;
+            }
+        }
+
+        long key(long[] values) {
+            long key = 0;
+            for (int d = 0; d < shifts.length; d++) {
+                PipelineConfig.Dimension dimension = dimensions.get(d);
+                long value = values[dimension.ordinal()] - dimension.min; // anything out of range would spill over
+                if (value >>> dimension.bits != 0) {
+                    throw new IllegalStateException(dimension + " " + values[dimension.ordinal()] + " out of range");
+                }
+                key |= value << shifts[d];
+            }
+            return key;
+        }
+
+        long value(long key, int d) {
+            PipelineConfig.Dimension dimension = dimensions.get(d);
+            return (key >>> shifts[d] & (1L << dimension.bits) - 1) + dimension.min;
+        }
+
+        /**
+         * @return the key with the dimensions' bits cleared
+         */
+        long without(long key, PipelineConfig.Dimension ... cleared) {
+            for (PipelineConfig.Dimension dimension : cleared) {
+                int d = dimensions.indexOf(dimension);
+                if (d >= 0) key &= ~((1L << dimension.bits) - 1 << shifts[d]);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * One statistic's results, a column of its group's table.
+     */
+    class View implements SnapshotProcessor, RankedProcessor, ColumnarExportable {
+        private final PipelineConfig.Statistic statistic;
+        private final Group group;
+        private final int column;
+        private final long mask;
+        private final long value;
+
+        View(PipelineConfig.Statistic statistic, Group group, int column, long mask, long value) {
+            this.statistic = statistic;
+            this.group = group;
+            this.column = column;
+            this.mask = mask;
+            this.value = value;
+        }
+
+        String getName() {
+            return statistic.name;
+        }
+
+        /**
+         * By user, the top users for all channels then each channel (and each value of any other dimension), as
+         * UserMessageCountProcessor does. Otherwise every group with its total, in dimension order.
+         */
+        public void outputResults(OutputStream out) throws IOException {
+            PrintStream ps = out instanceof PrintStream ? (PrintStream)out : new PrintStream(out);
+            GroupTable table = totals.tables[group.index];
+            if (!group.dimensions.contains(PipelineConfig.Dimension.USER)) {
+                ps.println();
+                ps.println(statistic.title);
+                ps.println("----------------------------------------");
+                for (int row : sortedRows(table)) {
+                    long total = table.get(row, column);
+                    if (total != 0) ps.println(total + "," + String.join(",", labels(table.key(row), false)));
+                }
+                return;
+            }
+
+            Map<Long, IntLongMap> all = userBlocks(table, true);
+            if (all.isEmpty() && ranked()) all.put(0L, new IntLongMap()); // listed even when empty, as ever
+            all.forEach((block, userTotals) -> outputBlock(ps, labels(block, true), userTotals));
+            userBlocks(table, false).forEach((block, userTotals) -> outputBlock(ps, labels(block, false), userTotals));
+        }
+
+        private void outputBlock(PrintStream ps, List<String> labels, IntLongMap userTotals) {
+            TopK top = top(userTotals, statistic.top);
+            ps.println();
+            ps.println(statistic.title + " - " + String.join(" ", labels));
+            ps.println("----------------------------------------");
+            for (int rank = 0; rank < top.size(); rank++) {
+                int user = top.item(rank);
+                ps.println(userTotals.get(user) + "," + Utils.userDetails(users, user));
+            }
+        }
+
+        /**
+         * Only statistics by user and at most channel are ranked.
+         */
+        @Override
+        public void addRankings(ResultSnapshot.Builder snapshot, String name, int depth) {
+            if (!ranked()) return;
+            GroupTable table = totals.tables[group.index];
+            Map<Long, IntLongMap> all = userBlocks(table, true);
+            if (all.isEmpty()) all.put(0L, new IntLongMap());
+            all.forEach((block, userTotals) -> snapshot.add(name, statistic.title, ResultSnapshot.ALL_CHANNELS,
+                    "All Channels", entries(userTotals, depth)));
+            userBlocks(table, false).forEach((block, userTotals) -> {
+                String channelId = channels.idOf((int)group.value(block, group.dimensions.indexOf(PipelineConfig.Dimension.CHANNEL)));
+                snapshot.add(name, statistic.title, channelId, Utils.channelName(channels, channelId),
+                        entries(userTotals, depth));
+            });
+        }
+
+        private List<ResultSnapshot.Entry> entries(IntLongMap userTotals, int depth) {
+            TopK top = top(userTotals, depth);
+            List<ResultSnapshot.Entry> entries = new ArrayList<>(top.size());
+            for (int rank = 0; rank < top.size(); rank++) {
+                entries.add(ResultSnapshot.Entry.of(users, top.item(rank), top.score(rank), (long)top.score(rank)));
+            }
+            return entries;
+        }
+
+        /**
+         * A line per group of tab separated dimension values then the total, in the format UserMessageCountProcessor
+         * uses when grouped by channel and user. All channel totals aren't written, they are summed when needed.
+         */
+        @Override
+        public void writeSnapshot(OutputStream out) throws IOException {
+            PrintStream ps = new PrintStream(out, false, "UTF-8");
+            GroupTable table = totals.tables[group.index];
+            for (int row = 0; row < table.rows(); row++) {
+                long total = table.get(row, column);
+                if (total == 0) continue;
+                StringBuilder line = new StringBuilder();
+                for (int d = 0; d < group.dimensions.size(); d++) {
+                    line.append(format(group.dimensions.get(d), group.value(table.key(row), d))).append('\t');
+                }
+                ps.println(line.append(total));
+            }
+            ps.flush();
+        }
+
+        /**
+         * Skips the all channel lines of snapshots written by UserMessageCountProcessor.
+         */
+        @Override
+        public void readSnapshot(InputStream in) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            GroupTable table = totals.tables[group.index];
+            long[] values = new long[PipelineConfig.Dimension.values().length];
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != group.dimensions.size() + 1 || fields[0].equals(ALL_CHANNELS)) continue;
+                for (int d = 0; d < group.dimensions.size(); d++) {
+                    PipelineConfig.Dimension dimension = group.dimensions.get(d);
+                    values[dimension.ordinal()] = parse(dimension, fields[d]);
+                }
+                table.add(table.row(group.key(values)), column, Long.parseLong(fields[fields.length - 1]));
+            }
+        }
+
+        /**
+         * One row per group, named after the dimensions and the metric.
+         */
+        @Override
+        public void exportColumns(ColumnarWriter writer, String name) throws IOException {
+            int width = group.dimensions.size();
+            String[] names = new String[width + 1];
+            ColumnarWriter.Type[] types = new ColumnarWriter.Type[width + 1];
+            for (int d = 0; d < width; d++) {
+                PipelineConfig.Dimension dimension = group.dimensions.get(d);
+                names[d] = dimension.name().toLowerCase();
+                types[d] = dimension == PipelineConfig.Dimension.CHANNEL ? ColumnarWriter.Type.CHANNEL
+                        : dimension == PipelineConfig.Dimension.USER ? ColumnarWriter.Type.USER
+                        : dimension == PipelineConfig.Dimension.DAY ? ColumnarWriter.Type.DAY : ColumnarWriter.Type.COUNT;
+            }
+            names[width] = statistic.metric.name().toLowerCase();
+            types[width] = ColumnarWriter.Type.COUNT;
+
+            ColumnarWriter.Table out = writer.table(name, names, types);
+            GroupTable table = totals.tables[group.index];
+            for (int row : sortedRows(table)) {
+                long total = table.get(row, column);
+                if (total == 0) continue;
+                for (int d = 0; d < width; d++) {
+                    PipelineConfig.Dimension dimension = group.dimensions.get(d);
+                    long v = group.value(table.key(row), d);
+                    if (dimension == PipelineConfig.Dimension.CHANNEL) {
+                        v = writer.channel(channels.idOf((int)v), channels.get((int)v));
+                    } else if (dimension == PipelineConfig.Dimension.USER) {
+                        v = writer.user(users, (int)v);
+                    }
+                    out.set(d, v);
+                }
+                out.set(width, total);
+                out.endRow();
+            }
+        }
+
+        /**
+         * @return true if grouped by user and at most channel, like the dedicated count processors
+         */
+        private boolean ranked() {
+            for (PipelineConfig.Dimension dimension : group.dimensions) {
+                if (dimension != PipelineConfig.Dimension.USER && dimension != PipelineConfig.Dimension.CHANNEL) return false;
+            }
+            return group.dimensions.contains(PipelineConfig.Dimension.USER);
+        }
+
+        /**
+         * @param allChannels true to sum over channels
+         * @return user totals keyed by every other dimension, in key order
+         */
+        private Map<Long, IntLongMap> userBlocks(GroupTable table, boolean allChannels) {
+            Map<Long, IntLongMap> blocks = new TreeMap<>(Long::compareUnsigned);
+            if (!allChannels && !group.dimensions.contains(PipelineConfig.Dimension.CHANNEL)) return blocks;
+            int user = group.dimensions.indexOf(PipelineConfig.Dimension.USER);
+            for (int row = 0; row < table.rows(); row++) {
+                long total = table.get(row, column);
+                if (total == 0) continue;
+                long key = table.key(row);
+                long block = allChannels ? group.without(key, PipelineConfig.Dimension.USER, PipelineConfig.Dimension.CHANNEL)
+                        : group.without(key, PipelineConfig.Dimension.USER);
+                blocks.computeIfAbsent(block, b -> new IntLongMap()).addTo((int)group.value(key, user), total);
+            }
+            return blocks;
+        }
+
+        /**
+         * @param allChannels true to name the channel All Channels whatever the key holds
+         */
+        private List<String> labels(long key, boolean allChannels) {
+            List<String> labels = new ArrayList<>();
+            boolean byUser = group.dimensions.contains(PipelineConfig.Dimension.USER);
+            if (byUser && (allChannels || !group.dimensions.contains(PipelineConfig.Dimension.CHANNEL))) {
+                labels.add("All Channels");
+            }
+            for (int d = 0; d < group.dimensions.size(); d++) {
+                PipelineConfig.Dimension dimension = group.dimensions.get(d);
+                long v = group.value(key, d);
+                if (dimension == PipelineConfig.Dimension.CHANNEL) {
+                    if (!allChannels) labels.add(Utils.channelName(channels, channels.idOf((int)v)));
+                } else if (dimension != PipelineConfig.Dimension.USER) {
+                    labels.add(format(dimension, v));
+                }
+            }
+            return labels;
+        }
+    }
+
+    private String format(PipelineConfig.Dimension dimension, long value) {
+        switch (dimension) {
+            case CHANNEL:
+                return channels.idOf((int)value);
+            case USER:
+                return users.idOf((int)value);
+            case DAY:
+                return LocalDate.ofEpochDay(value).toString();
+            case WEEKDAY:
+                return DayOfWeek.of((int)value + 1).toString();
+            default:
+                return Long.toString(value);
+        }
+    }
+
+    private long parse(PipelineConfig.Dimension dimension, String value) {
+        switch (dimension) {
+            case CHANNEL:
+                return channels.intern(value);
+            case USER:
+                return users.intern(value);
+            case DAY:
+                return LocalDate.parse(value).toEpochDay();
+            case WEEKDAY:
+                return DayOfWeek.valueOf(value).getValue() - 1;
+            default:
+                return Long.parseLong(value);
+        }
+    }
+
+    /**
+     * @return the k users with the highest totals, sorted and looked up
+     */
+    private TopK top(IntLongMap userTotals, int k) {
+        TopK top = Utils.topUsers(users, k);
+        userTotals.forEach(top::offer);
+        return Utils.rankUsers(users, top);
+    }
+
+    private static int[] sortedRows(GroupTable table) {
+        Integer[] rows = new Integer[table.rows()];
+        for (int row = 0; row < rows.length; row++) {
+            rows[row] = row;
+        }
+        Arrays.sort(rows, (r1, r2) -> Long.compareUnsigned(table.key(r1), table.key(r2)));
+        int[] sorted = new int[rows.length];
+        for (int row = 0; row < rows.length; row++) {
+            sorted[row] = rows[row];
+        }
+        return sorted;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.dledmonds.slack;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prints a progress line every interval from the engine's metrics: channels done, messages processed, throughput
+ * over the last interval and overall, and an estimate of the time left from the share of channels done. Replays
+ * don't know how many channels there are, so they only get throughput.
+ *
+ * @author dledmonds
+ */
+public class ProgressReporter implements Closeable {
+
+    private final Metrics metrics;
+    private final PrintStream out;
+    private final ScheduledExecutorService scheduler;
+    private long lastMillis;
+    private long lastMessages;
+
+    ProgressReporter(Metrics metrics, long intervalMillis, PrintStream out) {
+        this.metrics = metrics;
+        this.out = out;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "slack-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void report() {
+        long millis = metrics.elapsedMillis();
+        long messages = metrics.count("messages");
+        long channelsTotal = metrics.count("channels.total");
+        long channelsDone = metrics.count("channels.done");
+
+        StringBuilder sb = new StringBuilder("Progress: ");
+        sb.append(channelsDone);
+        if (channelsTotal > 0) sb.append('/').append(channelsTotal);
+        sb.append(" channels, ").append(messages).append(" messages");
+        sb.append(" (").append(perSecond(messages - lastMessages, millis - lastMillis)).append("/s now, ")
+                .append(perSecond(messages, millis)).append("/s overall)");
+        if (channelsTotal > 0 && channelsDone > 0 && channelsDone < channelsTotal) {
+            long remainingMillis = millis * (channelsTotal - channelsDone) / channelsDone;
+            sb.append(", about ").append(duration(remainingMillis)).append(" left");
+        }
+        out.println(sb);
+
+        lastMillis = millis;
+        lastMessages = messages;
+    }
+
+    /**
+     * Stops reporting and prints a last line.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            // let a report that is already running finish first, so the last line is printed once and last
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        report();
+    }
+
+    private static long perSecond(long count, long millis) {
+        return millis <= 0 ? 0 : count * 1000 / millis;
+    }
+
+    private static String duration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60) return seconds + "s";
+        if (seconds < 3600) return seconds / 60 + "m " + seconds % 60 + "s";
+        return seconds / 3600 + "h " + seconds / 60 % 60 + "m";
+    }
+
+}
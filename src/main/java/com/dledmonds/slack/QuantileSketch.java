@@ -0,0 +1,85 @@
+package com.dledmonds.slack;
+
+/**
+ * Quantiles of non-negative values to within a relative accuracy, in a fixed number of logarithmic buckets (in the
+ * style of DDSketch). At 1% accuracy, 2048 buckets cover values up to about 10^17. Bucket counts simply add, so
+ * sketches merge exactly.
+ *
+ * @author dledmonds
+ */
+public class QuantileSketch {
+
+    private final double accuracy;
+    private final double logGamma;
+    private final long[] counts; // counts[0] holds values below 1, counts[i] values in (gamma^(i-1), gamma^i]
+    private long total;
+
+    QuantileSketch(double accuracy, int buckets) {
+        if (accuracy <= 0 || accuracy >= 1) throw new IllegalArgumentException("Accuracy must be between 0 and 1");
+        this.accuracy = accuracy;
+        this.logGamma = Math.log((1 + accuracy) / (1 - accuracy));
+        this.counts = new long[buckets];
+    }
+
+    void add(double value) {
+        counts[bucketOf(value)]++;
+        total++;
+    }
+
+    /**
+     * @return a value within the sketch's relative accuracy of the q quantile (0 to 1), or 0 if nothing was added
+     */
+    double quantile(double q) {
+        if (total == 0) return 0;
+        long rank = (long)Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return i == 0 ? 0 : 2 * Math.exp(logGamma * i) / (Math.exp(logGamma) + 1); // bucket midpoint
+            }
+        }
+        return 0;
+    }
+
+    long count() {
+        return total;
+    }
+
+    void merge(QuantileSketch other) {
+        if (other.accuracy != accuracy || other.counts.length != counts.length) {
+            throw new IllegalArgumentException("Cannot merge sketches with different layouts");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    private int bucketOf(double value) {
+        if (value < 1) return 0;
+        int bucket = (int)Math.ceil(Math.log(value) / logGamma);
+        return Math.max(1, Math.min(counts.length - 1, bucket)); // anything larger shares the last bucket
+    }
+
+    String encode() {
+        StringBuilder sb = new StringBuilder().append(accuracy).append(':').append(counts.length);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) sb.append(':').append(i).append(',').append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    static QuantileSketch decode(String encoded) {
+        String[] fields = encoded.split(":");
+        QuantileSketch sketch = new QuantileSketch(Double.parseDouble(fields[0]), Integer.parseInt(fields[1]));
+        for (int i = 2; i < fields.length; i++) {
+            String[] entry = fields[i].split(",");
+            long count = Long.parseLong(entry[1]);
+            sketch.counts[Integer.parseInt(entry[0])] += count;
+            sketch.total += count;
+        }
+        return sketch;
+    }
+
+}
@@ -0,0 +1,18 @@
+package com.dledmonds.slack;
+
+/**
+ * Processors whose results are rankings of users, which can be copied into a ResultSnapshot to be served.
+ *
+ * @author dledmonds
+ */
+public interface RankedProcessor {
+
+    /**
+     * Adds the all channels ranking then one per channel, each at most depth users long. Must not be called while
+     * messages are being processed.
+     *
+     * @param name name of the report the rankings are added to
+     */
+    void addRankings(ResultSnapshot.Builder snapshot, String name, int depth);
+
+}
@@ -0,0 +1,123 @@
+package com.dledmonds.slack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket per Slack API method, refilled at the rate of the method's tier. Safe to share between threads.
+ *
+ * @author dledmonds
+ */
+public class RateLimiter {
+
+    enum Tier {
+        TIER_1(1), TIER_2(20), TIER_3(50), TIER_4(100);
+
+        final int perMinute;
+
+        Tier(int perMinute) {
+            this.perMinute = perMinute;
+        }
+    }
+
+    private static final Map<String, Tier> METHOD_TIERS = new HashMap<>();
+    static {
+        METHOD_TIERS.put("users.list", Tier.TIER_2);
+        METHOD_TIERS.put("users.info", Tier.TIER_4);
+        METHOD_TIERS.put("conversations.list", Tier.TIER_2);
+        METHOD_TIERS.put("conversations.info", Tier.TIER_3);
+        METHOD_TIERS.put("conversations.history", Tier.TIER_3);
+        METHOD_TIERS.put("conversations.replies", Tier.TIER_3);
+    }
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final double burst;
+    private final double scale;
+
+    /**
+     * @param burst number of calls a method may make back to back before being held to its tier rate
+     */
+    RateLimiter(double burst) {
+        this(burst, 1);
+    }
+
+    /**
+     * @param scale multiplier applied to every tier rate, more than 0
+     */
+    RateLimiter(double burst, double scale) {
+        if (!(scale > 0) || Double.isInfinite(scale)) { // NaN fails every comparison
+            throw new IllegalArgumentException("Rate limit scale must be a number more than 0, not " + scale);
+        }
+        this.burst = burst;
+        this.scale = scale;
+    }
+
+    /**
+     * Blocks until a call to the given method is allowed.
+     */
+    void acquire(String method) {
+        Bucket bucket = bucketFor(method);
+        long wait;
+        while ((wait = bucket.tryTake()) > 0) {
+            sleep(wait);
+        }
+    }
+
+    /**
+     * Holds back every caller of the given method for the period Slack asked for in a Retry-After header.
+     */
+    void blockFor(String method, long millis) {
+        bucketFor(method).blockUntil(System.currentTimeMillis() + millis);
+    }
+
+    private Bucket bucketFor(String method) {
+        return buckets.computeIfAbsent(method, m -> new Bucket(METHOD_TIERS.getOrDefault(m, Tier.TIER_3).perMinute * scale, burst));
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for rate limit", ie);
+        }
+    }
+
+    private static class Bucket {
+        private final double perMilli;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+        private long blockedUntil;
+
+        Bucket(double perMinute, double capacity) {
+            this.perMilli = perMinute / 60000.0;
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        /**
+         * @return 0 if a token was taken, otherwise the millis to wait before trying again
+         */
+        synchronized long tryTake() {
+            long now = System.currentTimeMillis();
+            if (now < blockedUntil) return blockedUntil - now;
+
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * perMilli);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long)Math.ceil((1 - tokens) / perMilli);
+        }
+
+        synchronized void blockUntil(long time) {
+            blockedUntil = Math.max(blockedUntil, time);
+            tokens = 0;
+        }
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.User;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of the processors' rankings at a point in time. Built between crawls and then only read, so any
+ * number of readers can use one while the next is being built from the live processors.
+ *
+ * @author dledmonds
+ */
+public class ResultSnapshot {
+
+    /**
+     * Channel id used for the rankings over all channels.
+     */
+    static final String ALL_CHANNELS = "all";
+
+    private final long createdMillis;
+    private final Map<String, Report> reports;
+
+    private ResultSnapshot(long createdMillis, Map<String, Report> reports) {
+        this.createdMillis = createdMillis;
+        this.reports = reports;
+    }
+
+    long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    Collection<Report> reports() {
+        return reports.values();
+    }
+
+    /**
+     * @return the report, or null if there is none by that name
+     */
+    Report report(String name) {
+        return reports.get(name);
+    }
+
+    static class Report {
+        final String name;
+        final String title;
+        private final Map<String, Ranking> rankings = new LinkedHashMap<>(); // by channel id, all channels first
+
+        private Report(String name, String title) {
+            this.name = name;
+            this.title = title;
+        }
+
+        Collection<Ranking> rankings() {
+            return Collections.unmodifiableCollection(rankings.values());
+        }
+
+        /**
+         * @param channel channel id or name, or ALL_CHANNELS
+         * @return the channel's ranking, or null if nothing was ranked for it
+         */
+        Ranking ranking(String channel) {
+            Ranking ranking = rankings.get(channel);
+            if (ranking != null) return ranking;
+            for (Ranking r : rankings.values()) {
+                if (channel.equals(r.channelName)) return r;
+            }
+            return null;
+        }
+    }
+
+    static class Ranking {
+        final String channelId;
+        final String channelName;
+        final List<Entry> entries; // best first
+
+        private Ranking(String channelId, String channelName, List<Entry> entries) {
+            this.channelId = channelId;
+            this.channelName = channelName;
+            this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        }
+    }
+
+    static class Entry {
+        final String userId;
+        final String userName; // null if the user couldn't be found
+        final String realName;
+        final double score;
+        final long messages;
+
+        Entry(String userId, String userName, String realName, double score, long messages) {
+            this.userId = userId;
+            this.userName = userName;
+            this.realName = realName;
+            this.score = score;
+            this.messages = messages;
+        }
+
+        /**
+         * @param user index in the registry, looked up if not yet known
+         */
+        static Entry of(UserRegistry users, int user, double score, long messages) {
+            User u = users.get(user);
+            return new Entry(users.idOf(user), u == null ? null : u.getName(), u == null ? null : u.getRealName(),
+                    score, messages);
+        }
+    }
+
+    static class Builder {
+        private final Map<String, Report> reports = new LinkedHashMap<>();
+
+        /**
+         * Adds a channel's ranking to the named report, creating the report on first use.
+         */
+        void add(String report, String title, String channelId, String channelName, List<Entry> entries) {
+            reports.computeIfAbsent(report, name -> new Report(name, title)).rankings
+                    .put(channelId, new Ranking(channelId, channelName, entries));
+        }
+
+        ResultSnapshot build() {
+            return new ResultSnapshot(System.currentTimeMillis(), Collections.unmodifiableMap(reports));
+        }
+    }
+
+}
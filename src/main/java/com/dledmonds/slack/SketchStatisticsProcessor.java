@@ -0,0 +1,200 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.User;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Approximate per channel statistics in fixed memory: distinct posters (HyperLogLog), top posters (Space-Saving),
+ * and message length and thread reply latency percentiles (quantile sketches). The all channels figures are the
+ * channel sketches merged together at output time rather than a second set of counts.
+ *
+ * @author dledmonds
+ */
+public class SketchStatisticsProcessor
+        implements ChannelProcessor, MergeableProcessor<SketchStatisticsProcessor.Sketches>, UserProcessor, SnapshotProcessor {
+
+    private static final double QUANTILE_ACCURACY = 0.01;
+    private static final int QUANTILE_BUCKETS = 2048;
+
+    protected String title = "Approximate Statistics";
+    protected Interner<Conversation> channels = new Interner<>();
+    protected UserRegistry users;
+    protected Sketches sketches = new Sketches();
+    protected int limit;
+    protected int precision;
+    protected int capacity;
+
+    protected SketchStatisticsProcessor(int limit) {
+        this(limit, 12, 1000, new UserRegistry());
+    }
+
+    /**
+     * @param precision HyperLogLog precision, each channel takes 2^precision bytes for distinct posters
+     * @param capacity posters tracked per channel for the top posters
+     */
+    protected SketchStatisticsProcessor(int limit, int precision, int capacity, UserRegistry users) {
+        this.limit = limit;
+        this.precision = precision;
+        this.capacity = capacity;
+        this.users = users;
+    }
+
+    @Override
+    public void seenChannel(Conversation conversation) {
+        channels.intern(conversation.getId(), conversation);
+    }
+
+    @Override
+    public void seenUser(User user) {
+        users.add(user);
+    }
+
+    @Override
+    public int messageFields() {
+        return MessageRecord.TEXT | MessageRecord.THREAD;
+    }
+
+    @Override
+    public void seenMessage(String channel, Message message) {
+        seenMessage(sketches, channel, message);
+    }
+
+    @Override
+    public Sketches newPartial() {
+        return new Sketches();
+    }
+
+    @Override
+    public void seenMessage(Sketches partial, String channel, Message message) {
+        ChannelSketches cs = partial.sketchesFor(channel);
+        cs.posters.add(message.getUser());
+        cs.topPosters.add(message.getUser());
+        if (message.getText() != null) cs.textLength.add(message.getText().length());
+        if (message.getThreadTs() != null && !message.getThreadTs().equals(message.getTs())) {
+            long latencyMicros = SlackTs.parseMicros(message.getTs()) - SlackTs.parseMicros(message.getThreadTs());
+            cs.replyLatency.add(latencyMicros / 1000000.0);
+        }
+    }
+
+    @Override
+    public void merge(Sketches partial) {
+        sketches.merge(partial);
+    }
+
+    public void outputResults(OutputStream out) throws IOException {
+        PrintStream ps = null;
+        if (out instanceof PrintStream) {
+            ps = (PrintStream)out;
+        } else {
+            ps = new PrintStream(out);
+        }
+
+        ChannelSketches all = new ChannelSketches();
+        for (ChannelSketches cs : sketches.channelSketches.values()) {
+            all.merge(cs);
+        }
+        outputResults(ps, "All Channels", all);
+        for (Map.Entry<String, ChannelSketches> entry : sketches.channelSketches.entrySet()) {
+            outputResults(ps, Utils.channelName(channels, entry.getKey()), entry.getValue());
+        }
+    }
+
+    private void outputResults(PrintStream ps, String name, ChannelSketches cs) {
+        ps.println();
+        ps.println(title + " - " + name);
+        ps.println("----------------------------------------");
+        ps.println("Messages: " + cs.topPosters.total());
+        ps.println(String.format("Distinct posters: ~%d (+/-%.1f%%)", cs.posters.estimate(), cs.posters.standardError() * 100));
+        ps.println(String.format("Message length p50/p90/p99: %.0f/%.0f/%.0f", cs.textLength.quantile(0.5),
+                cs.textLength.quantile(0.9), cs.textLength.quantile(0.99)));
+        if (cs.replyLatency.count() > 0) {
+            ps.println(String.format("Reply latency p50/p90/p99: %.0fs/%.0fs/%.0fs", cs.replyLatency.quantile(0.5),
+                    cs.replyLatency.quantile(0.9), cs.replyLatency.quantile(0.99)));
+        }
+        TopK top = cs.topPosters.top(limit);
+        int[] ranked = new int[top.size()];
+        for (int rank = 0; rank < top.size(); rank++) {
+            ranked[rank] = users.intern(cs.topPosters.item(top.item(rank)));
+        }
+        users.resolve(ranked);
+        for (int rank = 0; rank < top.size(); rank++) {
+            int index = top.item(rank);
+            ps.println(cs.topPosters.count(index) + "," + Utils.userDetails(users, ranked[rank])
+                    + (cs.topPosters.error(index) > 0 ? ",+/-" + cs.topPosters.error(index) : ""));
+        }
+    }
+
+    @Override
+    public void writeSnapshot(OutputStream out) throws IOException {
+        PrintStream ps = new PrintStream(out, false, "UTF-8");
+        for (Map.Entry<String, ChannelSketches> entry : sketches.channelSketches.entrySet()) {
+            ChannelSketches cs = entry.getValue();
+            ps.println("H\t" + entry.getKey() + "\t" + cs.posters.encode());
+            ps.println("S\t" + entry.getKey() + "\t" + cs.topPosters.encode());
+            ps.println("L\t" + entry.getKey() + "\t" + cs.textLength.encode());
+            ps.println("R\t" + entry.getKey() + "\t" + cs.replyLatency.encode());
+        }
+        ps.flush();
+    }
+
+    @Override
+    public void readSnapshot(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) continue;
+            ChannelSketches cs = sketches.sketchesFor(fields[1]);
+            switch (fields[0]) {
+                case "H": cs.posters.merge(HyperLogLog.decode(fields[2])); break;
+                case "S": cs.topPosters.merge(SpaceSaving.decode(fields[2])); break;
+                case "L": cs.textLength.merge(QuantileSketch.decode(fields[2])); break;
+                case "R": cs.replyLatency.merge(QuantileSketch.decode(fields[2])); break;
+                default: break;
+            }
+        }
+    }
+
+    /**
+     * Every channel's sketches, either the processor's own or a dispatch thread's partial.
+     */
+    class Sketches {
+        private final Map<String, ChannelSketches> channelSketches = new LinkedHashMap<>();
+
+        ChannelSketches sketchesFor(String channelId) {
+            return channelSketches.computeIfAbsent(channelId, k -> new ChannelSketches());
+        }
+
+        void merge(Sketches other) {
+            for (Map.Entry<String, ChannelSketches> entry : other.channelSketches.entrySet()) {
+                sketchesFor(entry.getKey()).merge(entry.getValue());
+            }
+        }
+    }
+
+    class ChannelSketches {
+        private final HyperLogLog posters = new HyperLogLog(precision);
+        private final SpaceSaving topPosters = new SpaceSaving(capacity);
+        private final QuantileSketch textLength = new QuantileSketch(QUANTILE_ACCURACY, QUANTILE_BUCKETS);
+        private final QuantileSketch replyLatency = new QuantileSketch(QUANTILE_ACCURACY, QUANTILE_BUCKETS); // seconds
+
+        void merge(ChannelSketches other) {
+            posters.merge(other.posters);
+            topPosters.merge(other.topPosters);
+            textLength.merge(other.textLength);
+            replyLatency.merge(other.replyLatency);
+        }
+    }
+
+}
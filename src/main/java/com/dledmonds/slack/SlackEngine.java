@@ -1,25 +1,46 @@
 package com.dledmonds.slack;
 
 import com.github.seratch.jslack.Slack;
+import com.github.seratch.jslack.api.methods.MethodsClient;
 import com.github.seratch.jslack.api.methods.SlackApiException;
+import com.github.seratch.jslack.api.methods.SlackApiResponse;
 import com.github.seratch.jslack.api.methods.request.conversations.ConversationsHistoryRequest;
 import com.github.seratch.jslack.api.methods.request.conversations.ConversationsInfoRequest;
 import com.github.seratch.jslack.api.methods.request.conversations.ConversationsListRequest;
+import com.github.seratch.jslack.api.methods.request.conversations.ConversationsRepliesRequest;
+import com.github.seratch.jslack.api.methods.request.users.UsersInfoRequest;
 import com.github.seratch.jslack.api.methods.request.users.UsersListRequest;
 import com.github.seratch.jslack.api.methods.response.conversations.ConversationsHistoryResponse;
 import com.github.seratch.jslack.api.methods.response.conversations.ConversationsInfoResponse;
 import com.github.seratch.jslack.api.methods.response.conversations.ConversationsListResponse;
+import com.github.seratch.jslack.api.methods.response.conversations.ConversationsRepliesResponse;
+import com.github.seratch.jslack.api.methods.response.users.UsersInfoResponse;
 import com.github.seratch.jslack.api.methods.response.users.UsersListResponse;
 import com.github.seratch.jslack.api.model.Conversation;
 import com.github.seratch.jslack.api.model.ConversationType;
 import com.github.seratch.jslack.api.model.Message;
 import com.github.seratch.jslack.api.model.User;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author dledmonds
@@ -27,16 +48,48 @@ import java.util.List;
 public class SlackEngine implements Runnable {
 
     private Slack slack;
+    private MethodsClient methods;
     private String token;
     private List<String> allowedChannels;
     private List<ChannelProcessor> channelProcessors;
     private List<MessageProcessor> messageProcessors;
     private List<UserProcessor> userProcessors;
+    private boolean orderedMessages = true;
+    private int sortRunSize = 50000;
+    private int fetchThreads = 1;
+    private int prefetchPages;
+    private int pageLimit;
+    private ExecutorService prefetchExecutor;
+    private int dispatchThreads = 1;
+    private boolean threadReplies;
+    private int replyThreads = 2;
+    private int replyPollDays = 7;
+    private ExecutorService replyExecutor;
+    private PartitionedDispatcher dispatcher;
+    private RateLimiter rateLimiter = new RateLimiter(3);
+    private CrawlState crawlState;
+    private MetadataCache metadataCache;
+    private UserRegistry userRegistry;
+    private boolean lazyUsers;
+    private Metrics metrics = new Metrics();
+    private Metrics.Timer[] processorTimers = new Metrics.Timer[0]; // by position in messageProcessors
+    private long processorCalls; // only every Metrics.PROCESSOR_SAMPLE'th message is timed
+    private int messageFields = MessageRecord.ALL; // what the processors read, the rest isn't kept while sorting
+    private final Interner<Object> sortedUsers = new Interner<>(); // user ids of sorted messages, shared by channels
+    private long checkpointMillis;
+    private long lastCheckpoint;
+    private int retries = 5;
+    private Exception failure;
+    private final Object dispatchLock = new Object(); // all processor callbacks are made holding this
+    private static final int DISPATCH_BATCH = 1000;
+    private static final Set<String> TRANSIENT_ERRORS = new HashSet<>(Arrays.asList(
+            "internal_error", "fatal_error", "service_unavailable", "request_timeout"));
 
     SlackEngine(String token, String ... channelIds) {
         this.token = token;
         this.allowedChannels = Arrays.asList(channelIds);
-        this.slack = Slack.getInstance();
+        this.slack = Slack.getInstance(new MeteredHttpClient(metrics));
+        this.methods = slack.methods();
         this.channelProcessors = new ArrayList<>();
         this.messageProcessors = new ArrayList<>();
         this.userProcessors = new ArrayList<>();
@@ -54,53 +107,397 @@ public class SlackEngine implements Runnable {
         userProcessors.add(userProcessor);
     }
 
+    /**
+     * Adds the processor as each of channel, message and user processor that it is.
+     */
+    void addProcessor(Object processor) {
+        if (processor instanceof ChannelProcessor) addChannelProcessor((ChannelProcessor)processor);
+        if (processor instanceof MessageProcessor) addMessageProcessor((MessageProcessor)processor);
+        if (processor instanceof UserProcessor) addUserProcessor((UserProcessor)processor);
+    }
+
+    /**
+     * Base URL of the Slack Web API, e.g. to crawl a local stand-in server. Defaults to https://slack.com/api/
+     */
+    void setApiUrl(String apiUrl) {
+        methods.setEndpointUrlPrefix(apiUrl.endsWith("/") ? apiUrl : apiUrl + "/");
+    }
+
+    /**
+     * Multiplies every method's rate limit, for servers that allow more than Slack's tiers. Defaults to 1, anything
+     * but a number more than 0 is rejected with an IllegalArgumentException.
+     */
+    void setRateLimitScale(double scale) {
+        this.rateLimiter = new RateLimiter(3, scale);
+    }
+
+    /**
+     * When true (the default) each channel's messages are delivered oldest first, using an external sort so
+     * memory stays bounded. When false every page is handed to the processors as soon as it arrives.
+     */
+    void setOrderedMessages(boolean orderedMessages) {
+        this.orderedMessages = orderedMessages;
+    }
+
+    /**
+     * Maximum number of messages held in memory before the ordered mode spills a sorted run to disk.
+     */
+    void setSortRunSize(int sortRunSize) {
+        this.sortRunSize = sortRunSize;
+    }
+
+    /**
+     * Number of channels whose history is fetched at the same time. Processor callbacks are still made one
+     * at a time, and a channel's seenChannel always comes before its messages.
+     */
+    void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    /**
+     * Number of history pages of a channel that may be fetched ahead of the page being handled, so the next
+     * request is in flight while a page is sorted and dispatched. Requests are still made one at a time per
+     * channel, each needing the cursor from the one before. 0 (the default) fetches a page only once the last one
+     * has been handled.
+     */
+    void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    /**
+     * Messages asked for per conversations.history page, at most 1000. 0 (the default) leaves it to Slack, which
+     * returns 100.
+     */
+    void setPageLimit(int pageLimit) {
+        this.pageLimit = pageLimit;
+    }
+
+    /**
+     * Number of threads that feed messages to MergeableProcessors, each into its own partial aggregate. Other
+     * processors are still called one at a time on the engine's threads.
+     */
+    void setDispatchThreads(int dispatchThreads) {
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    /**
+     * When true every thread found in a channel's history has its replies fetched with conversations.replies and
+     * passed to MessageProcessor.seenReply. With a crawl state only replies newer than the last run are fetched, and
+     * threads started in earlier runs are polled for new replies (see setReplyPollDays).
+     */
+    void setThreadReplies(boolean threadReplies) {
+        this.threadReplies = threadReplies;
+    }
+
+    /**
+     * Number of threads fetching replies. Only a few threads' worth of work is queued, beyond that the channel's
+     * own fetch thread fetches replies itself, so a channel with thousands of threads can't run ahead.
+     */
+    void setReplyThreads(int replyThreads) {
+        this.replyThreads = replyThreads;
+    }
+
+    /**
+     * With a crawl state, how many days after its last reply a thread from an earlier run is still polled for new
+     * replies, a conversations.replies call per thread per run. Incremental runs only see parents newer than the last
+     * run in the history, so replies to threads idle for longer are missed. Threads idle for longer are forgotten.
+     */
+    void setReplyPollDays(int replyPollDays) {
+        this.replyPollDays = replyPollDays;
+    }
+
+    /**
+     * Only fetch messages newer than the newest one recorded for each channel, recording new high-water marks as
+     * channels complete. Saving the state is left to the caller.
+     */
+    void setCrawlState(CrawlState crawlState) {
+        this.crawlState = crawlState;
+    }
+
+    /**
+     * How often, with a crawl state, a checkpoint of the run so far is saved to it. A run that stops part way through
+     * resumes from its last checkpoint. 0 only saves the state at the end.
+     */
+    void setCheckpointInterval(long checkpointMillis) {
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /**
+     * Number of times a call that fails with a network error or a Slack server error is retried, with exponential
+     * backoff, before the run is failed. Rate limited calls are always retried.
+     */
+    void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Reuse user and channel listings from earlier runs instead of paging through them every time.
+     */
+    void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * Registry shared by the processors. Users from users.list are added to it, and any it doesn't know are looked
+     * up with users.info, one call per user, when asked for.
+     */
+    void setUserRegistry(UserRegistry userRegistry) {
+        this.userRegistry = userRegistry;
+        userRegistry.setResolver(this::lookupUsers);
+    }
+
+    /**
+     * When true (and a registry is set) users.list is skipped and only the users that end up in the results are
+     * looked up, a users.info call (Tier 4) for each one not seen before. Worth it when only a few channels are
+     * crawled, users.list pages through the whole workspace at Tier 2.
+     */
+    void setLazyUsers(boolean lazyUsers) {
+        this.lazyUsers = lazyUsers;
+    }
+
+    /**
+     * Counters, histograms and timers recorded by the engine: API call latencies (split into rate limit waits,
+     * HTTP, reading and decoding), messages and time per channel and time per processor call.
+     */
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the exception that stopped the last run, or null if it completed
+     */
+    Exception getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if the last run failed calling Slack with checkpoints on, so the crawl state matches what the
+     * processors have seen and can be saved to resume from
+     */
+    boolean isResumable() {
+        return checkpointMillis > 0 && (failure instanceof IOException || failure instanceof SlackApiException);
+    }
+
+    /**
+     * Drives the registered processors from a local source instead of the Slack API.
+     */
+    public void replay(MessageSource source) {
+        failure = null;
+        startDispatch();
+        try {
+            source.replay(this);
+        } catch (Exception e) {
+            failure = e;
+            e.printStackTrace(System.err);
+        } finally {
+            finishDispatch();
+        }
+    }
+
     public void run() {
+        failure = null;
+        lastCheckpoint = System.currentTimeMillis();
+        startDispatch();
+        if (threadReplies) {
+            AtomicInteger threadCount = new AtomicInteger();
+            replyExecutor = new ThreadPoolExecutor(replyThreads, replyThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(replyThreads * 4), r -> {
+                        Thread thread = new Thread(r, "slack-replies-" + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        if (prefetchPages > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            prefetchExecutor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "slack-history-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
         try {
             getUsers();
             getChannels(); // calls getMessages as it loops
+            if (metadataCache != null) metadataCache.awaitRefresh();
         } catch (Exception e) {
+            failure = e;
             e.printStackTrace(System.err);
+        } finally {
+            if (replyExecutor != null) {
+                replyExecutor.shutdownNow();
+                // a reply fetch still running could otherwise reach the processors after the caller saves the state
+                try {
+                    replyExecutor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            replyExecutor = null;
+            if (prefetchExecutor != null) prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+            finishDispatch();
         }
     }
 
-    private void getChannels() throws IOException, SlackApiException {
-        boolean keepGoing = true;
-        String nextCursor = null;
+    private void startDispatch() {
+        List<MergeableProcessor<?>> mergeable = new ArrayList<>();
+        processorTimers = new Metrics.Timer[messageProcessors.size()];
+        messageFields = 0;
+        for (int i = 0; i < messageProcessors.size(); i++) {
+            MessageProcessor mp = messageProcessors.get(i);
+            processorTimers[i] = metrics.processorTimer(mp);
+            messageFields |= mp.messageFields();
+            if (mp instanceof MergeableProcessor) mergeable.add((MergeableProcessor<?>)mp);
+        }
+        if (dispatchThreads > 1 && !mergeable.isEmpty()) {
+            dispatcher = new PartitionedDispatcher(dispatchThreads, 16, mergeable, metrics);
+        }
+    }
 
+    private void finishDispatch() {
+        synchronized (dispatchLock) {
+            if (dispatcher == null) return;
+            try {
+                dispatcher.finish();
+            } catch (RuntimeException re) {
+                if (failure == null) failure = re;
+                re.printStackTrace(System.err);
+            } finally {
+                dispatcher = null;
+            }
+        }
+    }
+
+    private void getChannels() throws IOException, SlackApiException {
         List<Conversation> allChannels = new ArrayList<>();
         if (!allowedChannels.isEmpty()) {
             for (String channelId : allowedChannels) {
-                ConversationsInfoRequest ciReq = ConversationsInfoRequest.builder().token(token).channel(channelId).build();
-                ConversationsInfoResponse ciResp = slack.methods().conversationsInfo(ciReq);
-                allChannels.add(ciResp.getChannel());
+                allChannels.addAll(cached("conversations.info." + channelId, Conversation.class, () -> fetchChannel(channelId)));
             }
         } else {
-            ConversationsListRequest clReq = ConversationsListRequest.builder().token(token).types(Arrays.asList(ConversationType.PUBLIC_CHANNEL)).build();
-            while (keepGoing) {
-                clReq.setCursor(nextCursor);
-                ConversationsListResponse clResp = slack.methods().conversationsList(clReq);
-                System.out.println("Adding " + clResp.getChannels().size() + " channels");
-                allChannels.addAll(clResp.getChannels());
-
-                nextCursor = clResp.getResponseMetadata().getNextCursor();
-                if (nextCursor == null || nextCursor.isEmpty()) keepGoing = false;
-            }
+            allChannels.addAll(cached("conversations.list", Conversation.class, this::fetchChannels));
         }
         System.out.println("Got " + allChannels.size() + " channels");
         // sort by name
         allChannels.sort((Conversation c1, Conversation c2) -> c1.getName().compareTo(c2.getName()));
 
+        List<Conversation> channels = new ArrayList<>();
         for (Conversation conversation : allChannels) {
             if (!conversation.isChannel() && !allowedChannels.contains(conversation.getId())) continue; // only process channels
-            for (ChannelProcessor cp : channelProcessors) {
-                cp.seenChannel(conversation);
+            channels.add(conversation);
+        }
+        metrics.counter("channels.total").add(channels.size());
+
+        if (fetchThreads <= 1) {
+            for (Conversation conversation : channels) {
+                getChannel(conversation);
             }
+            return;
+        }
 
-            getMessages(conversation.getId());
+        ExecutorService executor = Executors.newFixedThreadPool(fetchThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Conversation conversation : channels) {
+                futures.add(executor.submit(() -> {
+                    getChannel(conversation);
+                    return null;
+                }));
+            }
+            waitFor(futures);
+        } finally {
+            executor.shutdownNow();
+            // the other channels must have stopped before the state is saved
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void waitFor(List<Future<Void>> futures) throws IOException, SlackApiException {
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for channels or replies"); // not finished
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) throw (IOException)ee.getCause();
+            if (ee.getCause() instanceof SlackApiException) throw (SlackApiException)ee.getCause();
+            throw new IllegalStateException(ee.getCause());
         }
     }
 
+    private void getChannel(Conversation conversation) throws IOException, SlackApiException {
+        Metrics.Timer timer = metrics.timer("channel." + conversation.getId());
+        long start = timer.start();
+        fireChannel(conversation);
+        getMessages(conversation.getId());
+        timer.stop(start);
+        metrics.counter("channels.done").increment();
+    }
+
     private void getUsers() throws IOException, SlackApiException {
+        if (lazyUsers && userRegistry != null) {
+            System.out.println("Skipping users.list, users will be looked up as needed");
+            return;
+        }
+        List<User> allUsers = new ArrayList<>(cached("users.list", User.class, this::fetchUsers));
+        System.out.println("Got " + allUsers.size() + " users");
+        // alphabetical sort
+        allUsers.sort((User u1, User u2) -> u1.getName().compareTo(u2.getName()));
+
+        fireUsers(allUsers);
+    }
+
+    /**
+     * Slack has no batched lookup, so this is a users.info call (Tier 4) per user.
+     */
+    private List<User> lookupUsers(Set<String> ids) throws IOException, SlackApiException {
+        System.out.println("Looking up " + ids.size() + " users");
+        List<User> found = new ArrayList<>();
+        for (String id : ids) {
+            UsersInfoRequest uiReq = UsersInfoRequest.builder().token(token).user(id).build();
+            UsersInfoResponse uiResp = callApi("users.info", () -> methods.usersInfo(uiReq));
+            if (uiResp.getUser() != null) found.add(uiResp.getUser());
+        }
+        return found;
+    }
+
+    private <T> List<T> cached(String key, Class<T> type, MetadataCache.Fetcher<T> fetcher) throws IOException, SlackApiException {
+        return metadataCache == null ? fetcher.fetch() : metadataCache.get(key, type, fetcher);
+    }
+
+    private List<Conversation> fetchChannel(String channelId) throws IOException, SlackApiException {
+        ConversationsInfoRequest ciReq = ConversationsInfoRequest.builder().token(token).channel(channelId).build();
+        ConversationsInfoResponse ciResp = checkOk("conversations.info",
+                callApi("conversations.info", () -> methods.conversationsInfo(ciReq)));
+        return Collections.singletonList(ciResp.getChannel());
+    }
+
+    private List<Conversation> fetchChannels() throws IOException, SlackApiException {
+        boolean keepGoing = true;
+        String nextCursor = null;
+
+        List<Conversation> allChannels = new ArrayList<>();
+        ConversationsListRequest clReq = ConversationsListRequest.builder().token(token).types(Arrays.asList(ConversationType.PUBLIC_CHANNEL)).build();
+        while (keepGoing) {
+            clReq.setCursor(nextCursor);
+            ConversationsListResponse clResp = checkOk("conversations.list",
+                    callApi("conversations.list", () -> methods.conversationsList(clReq)));
+            System.out.println("Adding " + clResp.getChannels().size() + " channels");
+            allChannels.addAll(clResp.getChannels());
+
+            nextCursor = clResp.getResponseMetadata().getNextCursor();
+            if (nextCursor == null || nextCursor.isEmpty()) keepGoing = false;
+        }
+        return allChannels;
+    }
+
+    private List<User> fetchUsers() throws IOException, SlackApiException {
         boolean keepGoing = true;
         String nextCursor = null;
 
@@ -108,7 +505,7 @@ public class SlackEngine implements Runnable {
         UsersListRequest uReq = UsersListRequest.builder().token(token).build();
         while (keepGoing) {
             uReq.setCursor(nextCursor);
-            UsersListResponse uResp = slack.methods().usersList(uReq);
+            UsersListResponse uResp = checkOk("users.list", callApi("users.list", () -> methods.usersList(uReq)));
 
             System.out.println("Adding " + uResp.getMembers().size() + " users");
             allUsers.addAll(uResp.getMembers());
@@ -116,56 +513,417 @@ public class SlackEngine implements Runnable {
             nextCursor = uResp.getResponseMetadata() == null ? null : uResp.getResponseMetadata().getNextCursor();
             if (nextCursor == null || nextCursor.isEmpty()) keepGoing = false;
         }
-        System.out.println("Got " + allUsers.size() + " users");
-        // alphabetical sort
-        allUsers.sort((User u1, User u2) -> u1.getName().compareTo(u2.getName()));
-
-        for (User user : allUsers) {
-            for (UserProcessor up : userProcessors) {
-                up.seenUser(user);
-            }
-        }
+        return allUsers;
     }
 
     private void getMessages(String channel) throws IOException, SlackApiException {
         boolean keepGoing = true;
         String nextCursor = null;
         long loopCount = 0;
+        long messageCount = 0;
+        long skippedThreads = 0;
+        long polledThreads = 0;
+        String latestTs = null;
+        List<Future<Void>> threads = new ArrayList<>();
+        Set<String> threadsFetched = new HashSet<>();
+        boolean checkpointing = crawlState != null && checkpointMillis > 0;
+        long positionTime = System.currentTimeMillis();
 
-        List<Message> allMessages = new ArrayList<>();
         ConversationsHistoryRequest chReq = ConversationsHistoryRequest.builder().token(token).channel(channel).build();
-        while (keepGoing) {
-            chReq.setCursor(nextCursor);
-            ConversationsHistoryResponse chResp = slack.methods().conversationsHistory(chReq);
+        if (pageLimit > 0) chReq.setLimit(pageLimit);
+        if (crawlState != null) chReq.setOldest(crawlState.getLatestTs(channel)); // exclusive, so only newer messages
+        CrawlState.Position resumeFrom = checkpointing ? crawlState.getPosition(channel) : null;
+        Map<String, String> recordedThreads = Collections.emptyMap();
+        if (crawlState != null) {
+            String pollFrom = SlackTs.format(Math.max(0, System.currentTimeMillis() - replyPollDays * 86400000L) * 1000);
+            // a resumed channel's history may hold parents completed before the failure, they must stay recorded
+            if (resumeFrom == null) crawlState.pruneThreads(channel, pollFrom);
+            if (replyExecutor != null) recordedThreads = crawlState.getThreads(channel, pollFrom);
+        }
+        try (MessageSorter sorter = orderedMessages ? new MessageSorter(sortRunSize,
+                checkpointing ? crawlState.getRunDir() : null, messageFields, sortedUsers) : null;
+             HistoryPages pages = new HistoryPages(chReq)) {
+            if (resumeFrom != null) {
+                // carry on from the checkpoint, the cursor is only valid with the same oldest
+                chReq.setOldest(resumeFrom.oldest);
+                nextCursor = resumeFrom.cursor;
+                keepGoing = !nextCursor.isEmpty();
+                latestTs = resumeFrom.latestTs;
+                messageCount = resumeFrom.messageCount;
+                if (sorter != null) sorter.adopt(resumeFrom.runs);
+                for (Map.Entry<String, String> pending : crawlState.getPendingThreads(channel).entrySet()) {
+                    Message parent = new Message(); // only what the reply fetch needs was recorded
+                    parent.setTs(pending.getKey());
+                    parent.setThreadTs(pending.getKey());
+                    parent.setLatestReply(pending.getValue().isEmpty() ? null : pending.getValue());
+                    if (replyExecutor != null) submitReplies(channel, parent, threads, threadsFetched);
+                }
+                System.out.println("Resuming " + channel + " after " + messageCount + " messages");
+            }
+            chReq.setCursor(nextCursor); // from here on the cursor is moved by pages
+            while (keepGoing) {
+                ConversationsHistoryResponse chResp = pages.next();
+                nextCursor = chResp.getResponseMetadata() == null ? null : chResp.getResponseMetadata().getNextCursor();
+                if (nextCursor == null || nextCursor.isEmpty()) keepGoing = false;
+
+                List<Message> page = chResp.getMessages();
+                System.out.println("Adding "+ (++loopCount) + "-" + page.size() + " messages for " + channel);
+                messageCount += page.size();
+                for (Message message : page) {
+                    if (latestTs == null || SlackTs.compare(latestTs, message.getTs()) < 0) latestTs = message.getTs();
+                    if (replyExecutor == null || !isThreadParent(message)) continue;
+                    // only when resuming, the history then holds parents whose replies were fetched before it stopped
+                    String seenUpTo = crawlState == null ? null : crawlState.getLatestReply(channel, message.getTs());
+                    if (message.getLatestReply() != null && message.getLatestReply().equals(seenUpTo)) {
+                        threadsFetched.add(message.getTs());
+                        skippedThreads++;
+                        continue;
+                    }
+                    submitReplies(channel, message, threads, threadsFetched);
+                }
+                CrawlState.Position position = null;
+                if (sorter != null) {
+                    sorter.addAll(page);
+                    if (checkpointing && System.currentTimeMillis() - positionTime >= checkpointMillis) {
+                        position = new CrawlState.Position(nextCursor, chReq.getOldest(), latestTs, messageCount, sorter.checkpoint());
+                        positionTime = System.currentTimeMillis();
+                    }
+                } else if (checkpointing) {
+                    position = new CrawlState.Position(nextCursor, chReq.getOldest(), latestTs, messageCount, Collections.emptyList());
+                }
+                synchronized (dispatchLock) { // the position must always match what the processors have seen
+                    if (sorter == null) {
+                        // pages arrive newest first
+                        List<Message> ascending = new ArrayList<>(page);
+                        Collections.reverse(ascending);
+                        fireMessages(channel, ascending);
+                    }
+                    if (position != null) crawlState.setPosition(channel, position);
+                }
+                checkpointIfDue();
+            }
+
+            System.out.println("Got " + messageCount + " messages for " + channel);
+            metrics.counter("channel." + channel + ".messages").add(messageCount);
+            metrics.histogram("channel.messages").record(messageCount);
+            if (replyExecutor != null) {
+                // the history only holds parents newer than the last run, earlier threads may have new replies too
+                for (Map.Entry<String, String> recorded : recordedThreads.entrySet()) {
+                    if (threadsFetched.contains(recorded.getKey())) continue;
+                    Message parent = new Message();
+                    parent.setTs(recorded.getKey());
+                    parent.setThreadTs(recorded.getKey());
+                    parent.setLatestReply(recorded.getValue());
+                    submitReplies(channel, parent, threads, threadsFetched);
+                    polledThreads++;
+                }
+                waitFor(threads);
+                System.out.println("Got replies for " + threads.size() + " threads in " + channel
+                        + (polledThreads > 0 ? ", " + polledThreads + " from earlier runs" : "")
+                        + (skippedThreads > 0 ? ", " + skippedThreads + " unchanged threads skipped" : ""));
+            }
+            synchronized (dispatchLock) {
+                if (sorter != null) {
+                    List<Message> batch = new ArrayList<>(DISPATCH_BATCH);
+                    sorter.forEachSorted(message -> {
+                        batch.add(message);
+                        if (batch.size() >= DISPATCH_BATCH) {
+                            fireMessages(channel, new ArrayList<>(batch));
+                            batch.clear();
+                        }
+                    });
+                    fireMessages(channel, batch);
+                }
+                if (crawlState != null) {
+                    crawlState.completeChannel(channel, latestTs);
+                    if (sorter != null && checkpointing) crawlState.deleteAfterSave(sorter.getRunFiles());
+                }
+            }
+        }
+    }
+
+    /**
+     * A channel's history pages in order, starting from the request's cursor. With prefetching on a background task
+     * walks the cursors, handing pages over through a queue of prefetchPages that it blocks on when full. Positions
+     * recorded for checkpoints still come from the pages handed over, never from ones only prefetched.
+     */
+    private class HistoryPages implements Closeable {
+        private final ConversationsHistoryRequest request;
+        private final BlockingQueue<Object> queue; // pages, or the exception that stopped the fetch
+        private Future<Void> fetcher;
+
+        HistoryPages(ConversationsHistoryRequest request) {
+            this.request = request;
+            this.queue = prefetchExecutor == null ? null : new ArrayBlockingQueue<>(prefetchPages);
+        }
+
+        ConversationsHistoryResponse next() throws IOException, SlackApiException {
+            if (queue == null) return fetch();
+            if (fetcher == null) fetcher = prefetchExecutor.submit(this::prefetch);
+            Object page = queue.poll();
+            if (page == null) {
+                metrics.counter("history.prefetch.waits").increment();
+                try {
+                    page = queue.take();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for conversations.history");
+                }
+            }
+            if (page instanceof IOException) throw (IOException)page;
+            if (page instanceof SlackApiException) throw (SlackApiException)page;
+            if (page instanceof RuntimeException) throw (RuntimeException)page;
+            return (ConversationsHistoryResponse)page;
+        }
+
+        private ConversationsHistoryResponse fetch() throws IOException, SlackApiException {
+            ConversationsHistoryResponse response = checkOk("conversations.history",
+                    callApi("conversations.history", () -> methods.conversationsHistory(request)));
+            request.setCursor(response.getResponseMetadata() == null ? null : response.getResponseMetadata().getNextCursor());
+            return response;
+        }
+
+        private Void prefetch() throws InterruptedException {
+            try {
+                boolean more = true;
+                while (more) {
+                    ConversationsHistoryResponse response = fetch();
+                    more = request.getCursor() != null && !request.getCursor().isEmpty();
+                    queue.put(response);
+                }
+            } catch (IOException | SlackApiException | RuntimeException e) {
+                queue.put(e);
+            }
+            return null;
+        }
+
+        /**
+         * Stops any prefetch still running, e.g. when handling a page failed.
+         */
+        @Override
+        public void close() {
+            if (fetcher != null) fetcher.cancel(true);
+        }
+    }
+
+    /**
+     * Queues the fetch of a thread's replies, at most once per thread per channel fetch.
+     */
+    private void submitReplies(String channel, Message parent, List<Future<Void>> threads, Set<String> threadsFetched) {
+        if (!threadsFetched.add(parent.getTs())) return;
+        String seenUpTo = crawlState == null ? null : crawlState.getLatestReply(channel, parent.getTs());
+        if (crawlState != null && checkpointMillis > 0) {
+            crawlState.addPendingThread(channel, parent.getTs(), parent.getLatestReply());
+        }
+        threads.add(replyExecutor.submit(() -> {
+            getReplies(channel, parent, seenUpTo);
+            return null;
+        }));
+    }
+
+    /**
+     * Saves a checkpoint if one is due. Dispatch threads are drained first so their partial aggregates are in the
+     * processors, and the save happens holding the dispatch lock so no channel is part way through a page.
+     */
+    private void checkpointIfDue() throws IOException {
+        if (crawlState == null || checkpointMillis <= 0) return;
+        synchronized (dispatchLock) {
+            if (System.currentTimeMillis() - lastCheckpoint < checkpointMillis) return;
+            if (dispatcher != null) {
+                finishDispatch();
+                if (failure != null) throw new IllegalStateException("Message dispatch failed", failure);
+                startDispatch();
+            }
+            crawlState.save();
+            lastCheckpoint = System.currentTimeMillis();
+            metrics.counter("checkpoints").increment();
+            System.out.println("Checkpoint saved, " + crawlState.inProgress() + " channels in progress");
+        }
+    }
 
-            System.out.println("Adding "+ (++loopCount) + "-" + chResp.getMessages().size() + " messages");
-            allMessages.addAll(chResp.getMessages());
+    private boolean isThreadParent(Message message) {
+        return message.getReplyCount() != null && message.getReplyCount() > 0 && message.getTs().equals(message.getThreadTs());
+    }
 
-            nextCursor = chResp.getResponseMetadata() == null ? null : chResp.getResponseMetadata().getNextCursor();
+    /**
+     * Fetches the replies to parent newer than seenUpTo (all of them if null), oldest first. Replies also sent to the
+     * channel are left out, they are counted from the channel's history.
+     */
+    private void getReplies(String channel, Message parent, String seenUpTo) throws IOException, SlackApiException {
+        boolean keepGoing = true;
+        String nextCursor = null;
+
+        List<Message> replies = new ArrayList<>();
+        String latestReply = parent.getLatestReply(); // a polled thread's is only what was seen last time
+        ConversationsRepliesRequest crReq = ConversationsRepliesRequest.builder().token(token).channel(channel).ts(parent.getTs()).build();
+        crReq.setOldest(seenUpTo);
+        while (keepGoing) {
+            crReq.setCursor(nextCursor);
+            ConversationsRepliesResponse crResp = checkOk("conversations.replies",
+                    callApi("conversations.replies", () -> methods.conversationsReplies(crReq)));
+            for (Message reply : crResp.getMessages()) {
+                if (reply.getTs().equals(parent.getTs())) continue; // the parent is always included
+                if (seenUpTo != null && SlackTs.compare(reply.getTs(), seenUpTo) <= 0) continue;
+                if (latestReply == null || SlackTs.compare(latestReply, reply.getTs()) < 0) latestReply = reply.getTs();
+                if ("thread_broadcast".equals(reply.getSubtype())) continue;
+                replies.add(reply);
+            }
+
+            nextCursor = crResp.getResponseMetadata() == null ? null : crResp.getResponseMetadata().getNextCursor();
             if (nextCursor == null || nextCursor.isEmpty()) keepGoing = false;
+        }
+        replies.sort((Message m1, Message m2) -> SlackTs.compare(m1.getTs(), m2.getTs()));
+        metrics.histogram("thread.replies").record(replies.size());
+        synchronized (dispatchLock) {
+            fireReplies(channel, parent, replies);
+            if (crawlState != null) crawlState.completeThread(channel, parent.getTs(), latestReply);
+        }
+    }
 
-            //if (allMessages.size() >= 500) keepGoing = false;
+    void fireUsers(List<User> users) {
+        synchronized (dispatchLock) {
+            if (userRegistry != null) {
+                for (User user : users) {
+                    userRegistry.add(user);
+                }
+            }
+            for (User user : users) {
+                for (UserProcessor up : userProcessors) {
+                    up.seenUser(user);
+                }
+            }
         }
-        //if (allMessages.size() < 500) return;
+    }
 
-        System.out.println("Got " + allMessages.size() + " messages for " + channel);
-        // sort by timestamp
-        allMessages.sort((Message m1, Message m2) -> m1.getTs().compareTo(m2.getTs()));
+    void fireChannel(Conversation conversation) {
+        synchronized (dispatchLock) {
+            for (ChannelProcessor cp : channelProcessors) {
+                cp.seenChannel(conversation);
+            }
+        }
+    }
+
+    /**
+     * Hands a batch of one channel's messages to the processors, in the order given. The list must not be changed
+     * afterwards as dispatch threads may still be reading it.
+     */
+    void fireMessages(String channel, List<Message> messages) {
+        synchronized (dispatchLock) {
+            long delivered = 0;
+            for (Message message : messages) {
+                if (fireMessage(channel, message)) delivered++;
+            }
+            metrics.counter("messages").add(delivered);
+            if (dispatcher != null) dispatcher.dispatch(channel, messages);
+        }
+    }
+
+    void fireReplies(String channel, Message parent, List<Message> replies) {
+        synchronized (dispatchLock) {
+            for (Message reply : replies) {
+                if (reply.getUser() == null) continue; // only process messages sent by users/bots
+                metrics.counter("replies").increment();
+                boolean timed = processorCalls++ % Metrics.PROCESSOR_SAMPLE == 0;
+                for (int i = 0; i < messageProcessors.size(); i++) {
+                    MessageProcessor mp = messageProcessors.get(i);
+                    if (dispatcher != null && mp instanceof MergeableProcessor) continue; // fed by the dispatch threads
+                    long start = timed ? processorTimers[i].start() : 0;
+                    mp.seenReply(channel, parent, reply);
+                    if (timed) processorTimers[i].stop(start);
+                }
+            }
+            if (dispatcher != null) dispatcher.dispatch(channel, replies);
+        }
+    }
+
+    private boolean fireMessage(String channel, Message message) {
+        if (message.getUser() == null) return false; // only process messages sent by users/bots
+        boolean timed = processorCalls++ % Metrics.PROCESSOR_SAMPLE == 0;
+        for (int i = 0; i < messageProcessors.size(); i++) {
+            MessageProcessor mp = messageProcessors.get(i);
+            if (dispatcher != null && mp instanceof MergeableProcessor) continue; // fed by the dispatch threads
+            long start = timed ? processorTimers[i].start() : 0;
+            mp.seenMessage(channel, message);
+            if (timed) processorTimers[i].stop(start);
+        }
+        return true;
+    }
 
-        for (Message message : allMessages) {
-            if (message.getUser() == null) continue; // only process messages sent by users/bots
-            for (MessageProcessor mp : messageProcessors) {
-                mp.seenMessage(channel, message);
+    /**
+     * Makes a Slack API call once the rate limiter allows it, waiting out and retrying any HTTP 429 response.
+     * Network errors and Slack server errors are retried with exponential backoff, up to the retry limit.
+     */
+    private <T> T callApi(String method, ApiCall<T> call) throws IOException, SlackApiException {
+        Metrics.Timer waits = metrics.timer("api." + method + ".wait");
+        Metrics.Timer calls = metrics.timer("api." + method);
+        int attempt = 0;
+        while (true) {
+            long start = waits.start();
+            rateLimiter.acquire(method);
+            waits.stop(start);
+            long waitMillis;
+            start = calls.start();
+            try {
+                T response = call.call();
+                if (!(response instanceof SlackApiResponse) || ((SlackApiResponse)response).isOk()
+                        || !TRANSIENT_ERRORS.contains(((SlackApiResponse)response).getError()) || attempt >= retries) {
+                    return response;
+                }
+                waitMillis = backoff(method, attempt++, ((SlackApiResponse)response).getError());
+            } catch (SlackApiException e) {
+                if (e.getResponse() == null) throw e;
+                if (e.getResponse().code() == 429) {
+                    metrics.counter("api." + method + ".rateLimited").increment();
+                    waitMillis = retryAfterMillis(e);
+                    System.out.println("Rate limited on " + method + ", retrying in " + waitMillis + "ms");
+                } else if (e.getResponse().code() >= 500 && attempt < retries) {
+                    waitMillis = backoff(method, attempt++, "HTTP " + e.getResponse().code());
+                } else {
+                    throw e;
+                }
+            } catch (IOException ioe) {
+                // the run is being stopped, but timeouts are InterruptedIOExceptions too and are retried like the rest
+                if (Thread.currentThread().isInterrupted() || attempt >= retries) throw ioe;
+                waitMillis = backoff(method, attempt++, ioe.toString());
+            } finally {
+                calls.stop(start);
             }
+            rateLimiter.blockFor(method, waitMillis); // the pause is counted by the next acquire
         }
     }
 
-    private void pauseFor(long millis) {
+    /**
+     * @return millis to wait before the next attempt, doubling from a second up to a minute with some jitter so
+     * channels that failed together don't all retry together
+     */
+    private long backoff(String method, int attempt, String reason) {
+        metrics.counter("api." + method + ".retries").increment();
+        long millis = Math.min(60000, 1000L << Math.min(attempt, 6));
+        millis = millis / 2 + ThreadLocalRandom.current().nextLong(millis / 2 + 1);
+        System.out.println("Call to " + method + " failed (" + reason + "), retry " + (attempt + 1) + " of " + retries
+                + " in " + millis + "ms");
+        return millis;
+    }
+
+    /**
+     * @return the response if Slack reported success, otherwise fails with Slack's error
+     */
+    private <T extends SlackApiResponse> T checkOk(String method, T response) throws IOException {
+        if (!response.isOk()) throw new IOException(method + " failed: " + response.getError());
+        return response;
+    }
+
+    private long retryAfterMillis(SlackApiException e) {
+        String retryAfter = e.getResponse().header("Retry-After");
         try {
-            Thread.sleep(millis);
-        } catch (InterruptedException ie) {
-            // ignore this
+            return retryAfter == null ? 1000 : Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException nfe) {
+            return 1000;
         }
     }
 
+    interface ApiCall<T> {
+        T call() throws IOException, SlackApiException;
+    }
+
 }
@@ -0,0 +1,136 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.Message;
+import com.github.seratch.jslack.api.model.User;
+import com.github.seratch.jslack.common.json.GsonFactory;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads a standard Slack workspace export zip (users.json, channels.json and CHANNEL-NAME/YYYY-MM-DD.json day
+ * files) straight from the archive. Every file is streamed through a JSON reader one element at a time, and each
+ * channel's day files are decoded in parallel but delivered in date order.
+ *
+ * @author dledmonds
+ */
+public class SlackExportSource implements MessageSource {
+
+    private final Gson gson = GsonFactory.createSnakeCase();
+    private final File exportFile;
+    private final int threads;
+    private final List<String> allowedChannels;
+
+    SlackExportSource(File exportFile, int threads, String ... channelIds) {
+        this.exportFile = exportFile;
+        this.threads = Math.max(1, threads);
+        this.allowedChannels = Arrays.asList(channelIds);
+    }
+
+    @Override
+    public void replay(SlackEngine engine) throws IOException {
+        try (ZipFile zip = new ZipFile(exportFile)) {
+            List<User> allUsers = new ArrayList<>();
+            readArray(zip, zip.getEntry("users.json"), User.class, allUsers::add);
+            System.out.println("Got " + allUsers.size() + " users");
+            allUsers.sort((User u1, User u2) -> u1.getName().compareTo(u2.getName()));
+            engine.fireUsers(allUsers);
+
+            List<Conversation> allChannels = new ArrayList<>();
+            readArray(zip, zip.getEntry("channels.json"), Conversation.class, conversation -> {
+                if (!allowedChannels.isEmpty() && !allowedChannels.contains(conversation.getId())) return;
+                conversation.setChannel(true); // channels.json only holds public channels
+                if (conversation.getNumOfMembers() == null && conversation.getMembers() != null) {
+                    conversation.setNumOfMembers(conversation.getMembers().size());
+                }
+                allChannels.add(conversation);
+            });
+            System.out.println("Got " + allChannels.size() + " channels");
+            allChannels.sort((Conversation c1, Conversation c2) -> c1.getName().compareTo(c2.getName()));
+
+            // day files live in a folder named after the channel
+            Map<String, List<ZipEntry>> dayFiles = new HashMap<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                int slash = entry.getName().indexOf('/');
+                if (entry.isDirectory() || slash < 0 || !entry.getName().endsWith(".json")) continue;
+                dayFiles.computeIfAbsent(entry.getName().substring(0, slash), k -> new ArrayList<>()).add(entry);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                for (Conversation conversation : allChannels) {
+                    engine.fireChannel(conversation);
+                    List<ZipEntry> days = dayFiles.getOrDefault(conversation.getName(), new ArrayList<>());
+                    days.sort((ZipEntry e1, ZipEntry e2) -> e1.getName().compareTo(e2.getName()));
+                    replayChannel(engine, executor, zip, conversation.getId(), days);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private void replayChannel(SlackEngine engine, ExecutorService executor, ZipFile zip, String channel,
+                               List<ZipEntry> days) throws IOException {
+        long count = 0;
+        // bounded read ahead, so only a few decoded days are ever held in memory
+        Deque<Future<List<Message>>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        try {
+            while (next < days.size() || !inFlight.isEmpty()) {
+                while (next < days.size() && inFlight.size() < threads * 2) {
+                    ZipEntry day = days.get(next++);
+                    inFlight.add(executor.submit(() -> {
+                        List<Message> messages = new ArrayList<>();
+                        readArray(zip, day, Message.class, messages::add);
+                        return messages;
+                    }));
+                }
+                List<Message> messages = inFlight.poll().get();
+                engine.fireMessages(channel, messages);
+                count += messages.size();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted reading " + channel, ie);
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof IOException) throw (IOException)ee.getCause();
+            throw new IllegalStateException(ee.getCause());
+        }
+        System.out.println("Got " + count + " messages for " + channel + " from " + days.size() + " days");
+    }
+
+    private <T> void readArray(ZipFile zip, ZipEntry entry, Class<T> type, Consumer<T> consumer) throws IOException {
+        if (entry == null) return;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                consumer.accept(gson.fromJson(reader, type));
+            }
+            reader.endArray();
+        }
+    }
+
+}
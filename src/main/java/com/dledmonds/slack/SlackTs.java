@@ -0,0 +1,64 @@
+package com.dledmonds.slack;
+
+/**
+ * Slack message timestamps ("1234567890.123456", seconds and microseconds) as a long of epoch micros, parsed
+ * without creating any objects.
+ *
+ * @author dledmonds
+ */
+public class SlackTs {
+
+    private static final long MICROS_PER_SECOND = 1000000;
+
+    private SlackTs() {
+    }
+
+    public static long parseMicros(String ts) {
+        int length = ts.length();
+        if (length == 0) throw new NumberFormatException("Empty ts");
+        long seconds = 0;
+        int i = 0;
+        for (; i < length; i++) {
+            char c = ts.charAt(i);
+            if (c == '.') break;
+            if (c < '0' || c > '9') throw new NumberFormatException("Invalid ts " + ts);
+            seconds = seconds * 10 + (c - '0');
+        }
+
+        // exactly six fraction digits, padding or truncating whatever was given
+        long micros = 0;
+        int digits = 0;
+        for (i++; i < length && digits < 6; i++, digits++) {
+            char c = ts.charAt(i);
+            if (c < '0' || c > '9') throw new NumberFormatException("Invalid ts " + ts);
+            micros = micros * 10 + (c - '0');
+        }
+        for (; digits < 6; digits++) {
+            micros *= 10;
+        }
+        return seconds * MICROS_PER_SECOND + micros;
+    }
+
+    public static String format(long micros) {
+        long fraction = micros % MICROS_PER_SECOND;
+        StringBuilder sb = new StringBuilder(17).append(micros / MICROS_PER_SECOND).append('.');
+        for (long scale = MICROS_PER_SECOND / 10; scale > 1 && fraction < scale; scale /= 10) {
+            sb.append('0');
+        }
+        return sb.append(fraction).toString();
+    }
+
+    public static long toMillis(long micros) {
+        return micros / 1000;
+    }
+
+    /**
+     * Numeric comparison of two ts strings, unlike String.compareTo this isn't fooled by differing lengths.
+     */
+    public static int compare(String ts1, String ts2) {
+        // same shape (the usual case for Slack's 10.6 digit form) means the digits line up and compare directly
+        if (ts1.length() == ts2.length() && ts1.indexOf('.') == ts2.indexOf('.')) return ts1.compareTo(ts2);
+        return Long.compare(parseMicros(ts1), parseMicros(ts2));
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.dledmonds.slack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A processor whose aggregates can be saved and later merged back in, so a run only has to process new messages.
+ *
+ * @author dledmonds
+ */
+public interface SnapshotProcessor {
+
+    void writeSnapshot(OutputStream out) throws IOException;
+
+    /**
+     * Adds the snapshot's aggregates to whatever this processor already holds.
+     */
+    void readSnapshot(InputStream in) throws IOException;
+
+}
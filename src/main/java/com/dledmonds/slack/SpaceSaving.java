@@ -0,0 +1,198 @@
+package com.dledmonds.slack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space-Saving heavy hitters: tracks at most capacity items, so memory is fixed however many distinct items are
+ * seen. Any item occurring more than total / capacity times is guaranteed to be kept, and each kept count
+ * overestimates the true count by at most its error. Summaries merge, so per channel summaries can be combined
+ * into an all channel one.
+ *
+ * @author dledmonds
+ */
+public class SpaceSaving {
+
+    private final int capacity;
+    private final Map<String, Integer> positions = new HashMap<>();
+    // min-heap on count, so the item to evict is always at 0
+    private final String[] items;
+    private final long[] counts;
+    private final long[] errors;
+    private int size;
+    private long total;
+
+    SpaceSaving(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+        this.capacity = capacity;
+        this.items = new String[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+    }
+
+    void add(String item) {
+        add(item, 1, 0);
+    }
+
+    private void add(String item, long count, long error) {
+        total += count;
+        Integer position = positions.get(item);
+        if (position != null) {
+            counts[position] += count;
+            errors[position] += error;
+            siftDown(position);
+        } else if (size < capacity) {
+            items[size] = item;
+            counts[size] = count;
+            errors[size] = error;
+            positions.put(item, size);
+            siftUp(size++);
+        } else {
+            // replace the smallest, whose count becomes the new item's possible overestimate
+            positions.remove(items[0]);
+            items[0] = item;
+            errors[0] = counts[0] + error;
+            counts[0] += count;
+            positions.put(item, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Adds the other summary's counts. Items only one side holds may have been evicted from the other, so they are
+     * credited that side's smallest count as possible error (if it is full).
+     */
+    void merge(SpaceSaving other) {
+        long missingFromThis = size == capacity ? counts[0] : 0;
+        long missingFromOther = other.size == other.capacity ? other.counts[0] : 0;
+        SpaceSaving merged = new SpaceSaving(capacity);
+        for (int i = 0; i < size; i++) {
+            Integer position = other.positions.get(items[i]);
+            if (position == null) {
+                merged.offer(items[i], counts[i] + missingFromOther, errors[i] + missingFromOther);
+            } else {
+                merged.offer(items[i], counts[i] + other.counts[position], errors[i] + other.errors[position]);
+            }
+        }
+        for (int i = 0; i < other.size; i++) {
+            if (positions.containsKey(other.items[i])) continue;
+            merged.offer(other.items[i], other.counts[i] + missingFromThis, other.errors[i] + missingFromThis);
+        }
+        positions.clear();
+        size = 0;
+        for (int i = 0; i < merged.size; i++) {
+            items[i] = merged.items[i];
+            counts[i] = merged.counts[i];
+            errors[i] = merged.errors[i];
+            positions.put(items[i], i);
+        }
+        size = merged.size;
+        total += other.total;
+    }
+
+    /**
+     * Keeps the item only if it beats the current smallest, used when building a merged summary.
+     */
+    private void offer(String item, long count, long error) {
+        if (size < capacity) {
+            add(item, count, error);
+        } else if (count > counts[0]) {
+            positions.remove(items[0]);
+            items[0] = item;
+            counts[0] = count;
+            errors[0] = error;
+            positions.put(item, 0);
+            siftDown(0);
+        }
+    }
+
+    /**
+     * @return the k largest counts, ranked highest first (ties by item)
+     */
+    TopK top(int k) {
+        TopK top = new TopK(k, (i1, i2) -> items[i1].compareTo(items[i2]));
+        for (int i = 0; i < size; i++) {
+            top.offer(i, counts[i]);
+        }
+        top.sort();
+        return top;
+    }
+
+    String item(int index) {
+        return items[index];
+    }
+
+    long count(int index) {
+        return counts[index];
+    }
+
+    long error(int index) {
+        return errors[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long total() {
+        return total;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    String encode() {
+        StringBuilder sb = new StringBuilder().append(capacity).append(':').append(total);
+        for (int i = 0; i < size; i++) {
+            sb.append(':').append(items[i]).append(',').append(counts[i]).append(',').append(errors[i]);
+        }
+        return sb.toString();
+    }
+
+    static SpaceSaving decode(String encoded) {
+        String[] fields = encoded.split(":");
+        SpaceSaving summary = new SpaceSaving(Integer.parseInt(fields[0]));
+        for (int i = 2; i < fields.length; i++) {
+            String[] entry = fields[i].split(",");
+            summary.offer(entry[0], Long.parseLong(entry[1]), Long.parseLong(entry[2]));
+        }
+        summary.total = Long.parseLong(fields[1]);
+        return summary;
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (counts[parent] <= counts[index]) return;
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) return;
+            if (child + 1 < size && counts[child + 1] < counts[child]) child++;
+            if (counts[index] <= counts[child]) return;
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+        long count = counts[i];
+        counts[i] = counts[j];
+        counts[j] = count;
+        long error = errors[i];
+        errors[i] = errors[j];
+        errors[j] = error;
+        positions.put(items[i], i);
+        positions.put(items[j], j);
+    }
+
+}
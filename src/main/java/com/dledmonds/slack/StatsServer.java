@@ -0,0 +1,213 @@
+package com.dledmonds.slack;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the latest ResultSnapshot as JSON over HTTP. Requests only ever read the published snapshot, never the
+ * processors, so they don't wait on a crawl and a crawl doesn't wait on them.
+ * <ul>
+ * <li>GET /reports lists the reports, when they were last refreshed and the last refresh error if any</li>
+ * <li>GET /reports/NAME?channel=ID_OR_NAME&amp;top=K ranks users in a channel, all channels by default</li>
+ * <li>GET /reports/NAME/channels lists the channels the report ranks</li>
+ * </ul>
+ *
+ * @author dledmonds
+ */
+public class StatsServer implements Closeable {
+
+    static {
+        // small responses otherwise sit in the socket until the client's delayed ACK, ~40ms
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile ResultSnapshot snapshot;
+    private volatile String lastError;
+
+    /**
+     * @param host address to listen on, there is no authentication so anything other than a loopback address
+     *             publishes the results to the network
+     * @param port port to listen on, 0 for any free port
+     */
+    StatsServer(String host, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        executor = Executors.newFixedThreadPool(2, r -> {
+            Thread thread = new Thread(r, "slack-stats-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/reports", this::handle);
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Replaces the snapshot being served, clearing any refresh error.
+     */
+    void publish(ResultSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.lastError = null;
+    }
+
+    /**
+     * Reported alongside the snapshot, which stays the last good one.
+     */
+    void refreshFailed(Exception e) {
+        this.lastError = e.toString();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        ResultSnapshot current = snapshot; // one snapshot for the whole request
+        String requestPath = exchange.getRequestURI().getPath();
+        String[] path = requestPath.substring("/reports".length()).split("/");
+        Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+        int status = 200;
+        int top;
+        try {
+            top = Integer.parseInt(params.getOrDefault("top", Integer.toString(Integer.MAX_VALUE)));
+        } catch (NumberFormatException nfe) {
+            top = -1;
+        }
+
+        if (!exchange.getRequestMethod().equals("GET")) {
+            status = error(json, 405, "Only GET is supported");
+        } else if (!requestPath.equals("/reports") && !requestPath.startsWith("/reports/")) {
+            status = error(json, 404, "No such path"); // the context matches any path starting /reports
+        } else if (current == null) {
+            status = error(json, 503, lastError == null ? "No results yet, the first crawl is still running" : lastError);
+        } else if (path.length <= 1) {
+            writeIndex(json, current);
+        } else {
+            ResultSnapshot.Report report = current.report(path[1]);
+            if (report == null || path.length > 3 || (path.length == 3 && !path[2].equals("channels"))) {
+                status = error(json, 404, "No such report");
+            } else if (path.length == 3) {
+                writeChannels(json, report);
+            } else {
+                String channel = params.getOrDefault("channel", ResultSnapshot.ALL_CHANNELS);
+                ResultSnapshot.Ranking ranking = report.ranking(channel);
+                if (ranking == null) {
+                    status = error(json, 404, "No ranking for channel " + channel);
+                } else if (top <= 0) {
+                    status = error(json, 400, "top must be a positive number");
+                } else {
+                    writeRanking(json, current, report, ranking, top);
+                }
+            }
+        }
+        json.flush();
+
+        byte[] bytes = body.toByteArray();
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void writeIndex(JsonWriter json, ResultSnapshot current) throws IOException {
+        json.beginObject();
+        json.name("refreshed").value(Instant.ofEpochMilli(current.getCreatedMillis()).toString());
+        if (lastError != null) json.name("lastError").value(lastError);
+        json.name("reports").beginArray();
+        for (ResultSnapshot.Report report : current.reports()) {
+            json.beginObject();
+            json.name("name").value(report.name);
+            json.name("title").value(report.title);
+            int channels = 0;
+            for (ResultSnapshot.Ranking ranking : report.rankings()) {
+                if (!ranking.channelId.equals(ResultSnapshot.ALL_CHANNELS)) channels++;
+            }
+            json.name("channels").value(channels);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private void writeChannels(JsonWriter json, ResultSnapshot.Report report) throws IOException {
+        json.beginArray();
+        for (ResultSnapshot.Ranking ranking : report.rankings()) {
+            if (ranking.channelId.equals(ResultSnapshot.ALL_CHANNELS)) continue;
+            json.beginObject();
+            json.name("id").value(ranking.channelId);
+            json.name("name").value(ranking.channelName);
+            json.endObject();
+        }
+        json.endArray();
+    }
+
+    private void writeRanking(JsonWriter json, ResultSnapshot current, ResultSnapshot.Report report,
+                              ResultSnapshot.Ranking ranking, int top) throws IOException {
+        json.beginObject();
+        json.name("report").value(report.name);
+        json.name("title").value(report.title);
+        json.name("channel").value(ranking.channelId);
+        json.name("channelName").value(ranking.channelName);
+        json.name("refreshed").value(Instant.ofEpochMilli(current.getCreatedMillis()).toString());
+        json.name("users").beginArray();
+        for (int rank = 0; rank < Math.min(top, ranking.entries.size()); rank++) {
+            ResultSnapshot.Entry entry = ranking.entries.get(rank);
+            json.beginObject();
+            json.name("rank").value(rank + 1);
+            json.name("id").value(entry.userId);
+            json.name("name").value(entry.userName);
+            json.name("realName").value(entry.realName);
+            json.name("score").value(entry.score);
+            json.name("messages").value(entry.messages);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static int error(JsonWriter json, int status, String message) throws IOException {
+        json.beginObject();
+        json.name("error").value(message);
+        json.endObject();
+        return status;
+    }
+
+    private static Map<String, String> params(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            params.put(URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8"),
+                    eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+}
@@ -1,74 +1,209 @@
 package com.dledmonds.slack;
 
 import com.github.seratch.jslack.api.model.Conversation;
-import com.github.seratch.jslack.api.model.File;
 import com.github.seratch.jslack.api.model.Message;
 import com.github.seratch.jslack.api.model.User;
 
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.util.Date;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
 
 /**
+ * Logs every user, channel and message seen. Records are handed to a background writer thread through a bounded
+ * queue, so the engine only blocks when the writer falls a whole queue behind. The writer formats records in
+ * batches into a reused buffer and writes them with as few calls as possible. Call close() to flush what is left.
+ *
  * @author dledmonds
  */
-public class StreamOutputProcessor implements ChannelProcessor, MessageProcessor, UserProcessor {
+public class StreamOutputProcessor implements ChannelProcessor, MessageProcessor, UserProcessor, Closeable {
 
-    protected PrintStream ps;
+    private static final int QUEUE_SIZE = 8192;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final Record END = new Record(null, null);
+
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final OutputFormat format;
+    private final WritableByteChannel out;
+    private final Writer writer;
+    private volatile IOException failure;
+    private boolean closed;
 
     protected StreamOutputProcessor(OutputStream os) {
-        if (os instanceof PrintStream) {
-            this.ps = (PrintStream)os;
-        } else {
-            this.ps = new PrintStream(os);
+        this(os, OutputFormat.forName("text", ZoneId.systemDefault()), false);
+    }
+
+    /**
+     * @param gzip compress the output, closing the processor finishes the gzip stream
+     */
+    protected StreamOutputProcessor(OutputStream os, OutputFormat format, boolean gzip) {
+        this.format = format;
+        try {
+            if (gzip) {
+                this.out = Channels.newChannel(new GZIPOutputStream(os, BUFFER_SIZE));
+            } else if (os instanceof FileOutputStream) {
+                this.out = ((FileOutputStream)os).getChannel();
+            } else {
+                this.out = Channels.newChannel(os);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Unable to start output", ioe);
         }
+        this.writer = new Writer();
+        writer.start();
     }
 
     @Override
     public void seenChannel(Conversation conversation) {
-        ps.print("CHANNEL: ");
-        if (conversation.isArchived()) {
-            ps.println(conversation.getName() + " is archived");
-            return;
-        }
+        enqueue(new Record(null, conversation));
+    }
 
-        ps.print(conversation.getId() + " - " + conversation.getName());
-        if (conversation.getPreviousNames() != null) {
-            for (String prevName : conversation.getPreviousNames()) {
-                ps.print(", " + prevName);
-            }
-        }
-        ps.println(" - Users: " + conversation.getNumOfMembers());
+    @Override
+    public int messageFields() {
+        return MessageRecord.TEXT | MessageRecord.FILES | MessageRecord.DETAILS;
     }
 
     @Override
     public void seenMessage(String channel, Message message) {
-        ps.print("MESSAGE: ");
-        Date ts = Utils.convertTsToDate(message.getTs());
-        ps.print(ts + " - " + message.getClientMsgId() + "/" + message.getUser() + " - " + message.getType() + " - " + message.getText());
-        if (message.getFiles() != null) {
-            for (File file : message.getFiles()) {
-                ps.print("; File = " + file.getName() + " - " + file.getPermalink());
-            }
-        }
-        ps.println();
+        enqueue(new Record(channel, message));
     }
 
     @Override
     public void seenUser(User user) {
-        ps.print("USER: ");
+        enqueue(new Record(null, user));
+    }
 
-        if (user.isDeleted()) {
-            ps.println(user.getName() + " is deleted");
-            return;
+    private void enqueue(Record record) {
+        if (closed) throw new IllegalStateException("Output already closed");
+        try {
+            queue.put(record);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted writing output", ie);
         }
+    }
 
-        if (user.isBot()) {
-            ps.println(user.getName() + " is a bot");
-            return;
+    /**
+     * Waits for every queued record to be written, then closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for output to be written", ie);
+        } finally {
+            out.close();
         }
+        if (failure != null) throw failure;
+    }
 
-        ps.println(user.getId() + " - " + user.getName());
+    private static class Record {
+        private final String channel;
+        private final Object value;
+
+        Record(String channel, Object value) {
+            this.channel = channel;
+            this.value = value;
+        }
+    }
+
+    private class Writer extends Thread {
+        private final List<Record> batch = new ArrayList<>(QUEUE_SIZE);
+        private final StringBuilder text = new StringBuilder(BUFFER_SIZE);
+        private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        Writer() {
+            super("slack-output");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            format.header(text);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                queue.drainTo(batch, QUEUE_SIZE - 1);
+                boolean end = false;
+                for (Record record : batch) {
+                    if (record == END) {
+                        end = true;
+                        break;
+                    }
+                    if (failure != null) continue; // keep draining so the engine never blocks on a dead writer
+                    try {
+                        append(record);
+                    } catch (RuntimeException re) {
+                        failure = new IOException("Unable to format output", re);
+                        continue;
+                    }
+                    if (text.length() >= BUFFER_SIZE) write();
+                }
+                batch.clear();
+                if (failure == null) write(); // the queue is empty, so flush rather than sit on a partial buffer
+                if (end) return;
+            }
+        }
+
+        private void append(Record record) {
+            if (record.value instanceof Message) {
+                format.message(record.channel, (Message)record.value, text);
+            } else if (record.value instanceof Conversation) {
+                format.channel((Conversation)record.value, text);
+            } else {
+                format.user((User)record.value, text);
+            }
+        }
+
+        private void write() {
+            try {
+                CharBuffer chars = CharBuffer.wrap(text);
+                encoder.reset();
+                CoderResult result;
+                do {
+                    result = encoder.encode(chars, bytes, true);
+                    drain();
+                } while (result.isOverflow());
+                encoder.flush(bytes);
+                drain();
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+            text.setLength(0);
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            bytes.clear();
+        }
     }
 
 }
@@ -0,0 +1,87 @@
+package com.dledmonds.slack;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Day, week and hour buckets for epoch micros in a given time zone. The zone's offset changes up to TABLE_END are
+ * loaded into a table up front, so bucketing is a binary search with no java.time objects created per call. Safe to
+ * share between threads.
+ *
+ * @author dledmonds
+ */
+public class TimeBuckets {
+
+    private static final long MICROS_PER_SECOND = 1000000;
+    private static final long SECONDS_PER_HOUR = 3600;
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final long TABLE_END = 4102444800L; // 2100-01-01T00:00:00Z
+
+    private final ZoneId zone;
+    private final ZoneRules rules;
+    private final long[] transitions; // epoch seconds at which offsets[i + 1] takes over from offsets[i]
+    private final int[] offsets;
+
+    public TimeBuckets(ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+
+        List<ZoneOffsetTransition> changes = new ArrayList<>();
+        ZoneOffsetTransition next = rules.nextTransition(Instant.EPOCH);
+        while (next != null && next.toEpochSecond() < TABLE_END) {
+            changes.add(next);
+            next = rules.nextTransition(next.getInstant());
+        }
+        transitions = new long[changes.size()];
+        offsets = new int[changes.size() + 1];
+        offsets[0] = rules.getOffset(Instant.EPOCH).getTotalSeconds();
+        for (int i = 0; i < changes.size(); i++) {
+            transitions[i] = changes.get(i).toEpochSecond();
+            offsets[i + 1] = changes.get(i).getOffsetAfter().getTotalSeconds();
+        }
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * @return days since 1970-01-01 in this zone, the same numbering as LocalDate.toEpochDay
+     */
+    public long day(long micros) {
+        return Math.floorDiv(localSeconds(micros), SECONDS_PER_DAY);
+    }
+
+    /**
+     * @return weeks since the Monday before 1970-01-01 in this zone
+     */
+    public long week(long micros) {
+        return Math.floorDiv(day(micros) + 3, 7L); // 1970-01-01 was a Thursday
+    }
+
+    /**
+     * @return hours since 1970-01-01T00:00 in this zone
+     */
+    public long hour(long micros) {
+        return Math.floorDiv(localSeconds(micros), SECONDS_PER_HOUR);
+    }
+
+    public int hourOfDay(long micros) {
+        return (int)Math.floorMod(hour(micros), 24L); // the long overload, floorMod(long, int) is Java 9+
+    }
+
+    private long localSeconds(long micros) {
+        long seconds = Math.floorDiv(micros, MICROS_PER_SECOND);
+        if (seconds < 0 || seconds >= TABLE_END) {
+            return seconds + rules.getOffset(Instant.ofEpochSecond(seconds)).getTotalSeconds();
+        }
+        int index = Arrays.binarySearch(transitions, seconds);
+        return seconds + offsets[index >= 0 ? index + 1 : -index - 1];
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.dledmonds.slack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Message counts per user, per channel and per time bucket (TimeBuckets days or hours), plus the same per user
+ * across all channels. Each user/channel series only holds the buckets it has messages in, as sorted primitive
+ * arrays, and keeps prefix sums so the count over any window is two binary searches rather than a rescan. Not
+ * thread safe, each dispatch thread keeps its own store and they are merged at the end.
+ *
+ * @author dledmonds
+ */
+public class TimeSeriesStore {
+
+    public static final int NO_BUCKET = Integer.MAX_VALUE;
+
+    private final List<Series> series = new ArrayList<>();
+    private final List<IntLongMap> channelSeries = new ArrayList<>(); // indexed by channel, user to series index + 1
+    private final IntLongMap userSeries = new IntLongMap(); // user to series index + 1, all channels
+
+    void add(int user, int channel, int bucket, long count) {
+        seriesFor(user, channel, true).add(bucket, count);
+        seriesFor(user, -1, true).add(bucket, count);
+    }
+
+    /**
+     * @return messages from the user in the channel (all channels if channel is -1) in buckets [from, to)
+     */
+    long count(int user, int channel, int from, int to) {
+        Series s = seriesFor(user, channel, false);
+        return s == null ? 0 : s.sum(from, to);
+    }
+
+    long total(int user, int channel) {
+        Series s = seriesFor(user, channel, false);
+        return s == null ? 0 : s.total;
+    }
+
+    /**
+     * @return messages per bucket over [from, to)
+     */
+    double rate(int user, int channel, int from, int to) {
+        return to <= from ? 0 : (double)count(user, channel, from, to) / (to - from);
+    }
+
+    /**
+     * @return the first bucket the user has a message in, in the channel (or all channels if -1), else NO_BUCKET
+     */
+    int firstBucket(int user, int channel) {
+        Series s = seriesFor(user, channel, false);
+        return s == null || s.size == 0 ? NO_BUCKET : s.buckets[0];
+    }
+
+    /**
+     * @return number of channel indexes in use, channels without messages have no users
+     */
+    int channelCount() {
+        return channelSeries.size();
+    }
+
+    /**
+     * Calls the consumer with each user that has messages in the channel, all channels if channel is -1.
+     */
+    void forEachUser(int channel, UserConsumer consumer) {
+        IntLongMap users = channel < 0 ? userSeries : channel < channelSeries.size() ? channelSeries.get(channel) : null;
+        if (users != null) users.forEach((user, index) -> consumer.accept(user));
+    }
+
+    /**
+     * Calls the consumer with every non-empty bucket of every user/channel series (the all channels totals are
+     * not included, they can be rebuilt with add).
+     */
+    void forEachBucket(BucketConsumer consumer) {
+        for (Series s : series) {
+            if (s.channel < 0) continue;
+            for (int i = 0; i < s.size; i++) {
+                consumer.accept(s.user, s.channel, s.buckets[i], s.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer with every non-empty bucket of the channel's user series, in bucket order.
+     */
+    void forEachBucket(int channel, BucketConsumer consumer) {
+        IntLongMap users = channel < channelSeries.size() ? channelSeries.get(channel) : null;
+        if (users == null) return;
+        List<Series> channelUsers = new ArrayList<>(users.size());
+        users.forEach((user, index) -> channelUsers.add(series.get((int)index - 1)));
+        int rows = 0;
+        for (Series s : channelUsers) {
+            rows += s.size;
+        }
+        int[] rowSeries = new int[rows];
+        int[] rowIndex = new int[rows];
+        long[] keys = new long[rows]; // bucket in the high half, so it decides the sign and the order, then row
+        int row = 0;
+        for (int u = 0; u < channelUsers.size(); u++) {
+            Series s = channelUsers.get(u);
+            for (int i = 0; i < s.size; i++, row++) {
+                rowSeries[row] = u;
+                rowIndex[row] = i;
+                keys[row] = (long)s.buckets[i] << 32 | row;
+            }
+        }
+        Arrays.sort(keys);
+        for (long key : keys) {
+            Series s = channelUsers.get(rowSeries[(int)key]);
+            int i = rowIndex[(int)key];
+            consumer.accept(s.user, channel, s.buckets[i], s.counts[i]);
+        }
+    }
+
+    void merge(TimeSeriesStore other) {
+        other.forEachBucket(this::add);
+    }
+
+    private Series seriesFor(int user, int channel, boolean create) {
+        IntLongMap users;
+        if (channel < 0) {
+            users = userSeries;
+        } else {
+            while (create && channelSeries.size() <= channel) {
+                channelSeries.add(null);
+            }
+            users = channel < channelSeries.size() ? channelSeries.get(channel) : null;
+            if (users == null) {
+                if (!create) return null;
+                users = new IntLongMap();
+                channelSeries.set(channel, users);
+            }
+        }
+        int index = (int)users.get(user) - 1;
+        if (index >= 0) return series.get(index);
+        if (!create) return null;
+        Series s = new Series(user, channel);
+        series.add(s);
+        users.put(user, series.size());
+        return s;
+    }
+
+    private static class Series {
+        private final int user;
+        private final int channel;
+        private int[] buckets = new int[4]; // ascending
+        private long[] counts = new long[4];
+        private int size;
+        private long total;
+        private long[] prefix; // prefix[i] is the sum of counts[0..i), rebuilt after changes
+
+        Series(int user, int channel) {
+            this.user = user;
+            this.channel = channel;
+        }
+
+        void add(int bucket, long count) {
+            total += count;
+            prefix = null;
+            // messages mostly arrive in time order, so check the last bucket before searching
+            int i = size > 0 && buckets[size - 1] <= bucket ? size - 1 : Arrays.binarySearch(buckets, 0, size, bucket);
+            if (i >= 0 && buckets[i] == bucket) {
+                counts[i] += count;
+                return;
+            }
+            i = i < 0 ? -i - 1 : i + 1;
+            if (size == buckets.length) {
+                buckets = Arrays.copyOf(buckets, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(buckets, i, buckets, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            buckets[i] = bucket;
+            counts[i] = count;
+            size++;
+        }
+
+        long sum(int from, int to) {
+            if (to <= from || size == 0) return 0;
+            if (prefix == null) {
+                prefix = new long[size + 1];
+                for (int i = 0; i < size; i++) {
+                    prefix[i + 1] = prefix[i] + counts[i];
+                }
+            }
+            return prefix[lowerBound(to)] - prefix[lowerBound(from)];
+        }
+
+        private int lowerBound(int bucket) {
+            int i = Arrays.binarySearch(buckets, 0, size, bucket);
+            return i < 0 ? -i - 1 : i;
+        }
+    }
+
+    interface UserConsumer {
+        void accept(int user);
+    }
+
+    interface BucketConsumer {
+        void accept(int user, int channel, int bucket, long count);
+    }
+
+}
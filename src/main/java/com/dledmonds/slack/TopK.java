@@ -0,0 +1,120 @@
+package com.dledmonds.slack;
+
+/**
+ * Keeps the k highest scoring int items (user or channel indexes) offered to it in a bounded min-heap, so ranking n
+ * items costs O(n log k) and the source data is never copied or changed. Equal scores are ordered by the tie break,
+ * so the same input always ranks the same way.
+ *
+ * @author dledmonds
+ */
+public class TopK {
+
+    private final TieBreak tieBreak;
+    private final int[] items;
+    private final double[] scores;
+    private int size;
+    private boolean sorted;
+
+    /**
+     * @param tieBreak orders items with equal scores, an item comparing lower ranks higher
+     */
+    TopK(int k, TieBreak tieBreak) {
+        this.tieBreak = tieBreak;
+        this.items = new int[Math.max(0, k)];
+        this.scores = new double[Math.max(0, k)];
+    }
+
+    void offer(int item, double score) {
+        if (sorted) throw new IllegalStateException("Already sorted");
+        if (size < items.length) {
+            items[size] = item;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (size > 0 && ranksBefore(item, score, items[0], scores[0])) {
+            items[0] = item;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Puts the kept items in rank order, after which item(rank) and score(rank) can be read. No more items can
+     * be offered.
+     */
+    void sort() {
+        if (sorted) return;
+        // heap sort, the lowest ranked item sits at the root so swapping it to the end leaves best first
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the kept items, best first
+     */
+    int[] items() {
+        checkSorted();
+        return java.util.Arrays.copyOf(items, size);
+    }
+
+    int item(int rank) {
+        checkSorted();
+        return items[rank];
+    }
+
+    double score(int rank) {
+        checkSorted();
+        return scores[rank];
+    }
+
+    private void checkSorted() {
+        if (!sorted) throw new IllegalStateException("Call sort() first");
+    }
+
+    private boolean ranksBefore(int item1, double score1, int item2, double score2) {
+        int c = Double.compare(score1, score2);
+        return c > 0 || (c == 0 && tieBreak.compare(item1, item2) < 0);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!ranksBefore(items[parent], scores[parent], items[index], scores[index])) return;
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int end) {
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= end) return;
+            if (child + 1 < end && ranksBefore(items[child], scores[child], items[child + 1], scores[child + 1])) {
+                child++;
+            }
+            if (!ranksBefore(items[index], scores[index], items[child], scores[child])) return;
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int item = items[i];
+        items[i] = items[j];
+        items[j] = item;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+
+    interface TieBreak {
+        int compare(int item1, int item2);
+    }
+
+}
@@ -1,18 +1,17 @@
 package com.dledmonds.slack;
 
-import com.github.seratch.jslack.api.model.Message;
-
-public class UserHereOrChannelMessageCountProcessor extends UserMessageCountProcessor {
+public class UserHereOrChannelMessageCountProcessor extends PatternMessageCountProcessor {
 
     protected UserHereOrChannelMessageCountProcessor(int limit) {
-        super(limit);
-        title = "User @here/@channel Messages Count";
+        this(limit, new UserRegistry());
+    }
+
+    protected UserHereOrChannelMessageCountProcessor(int limit, UserRegistry users) {
+        this(limit, users, new MessageMatcher());
     }
 
-    @Override
-    protected boolean filterMessage(Message message) {
-        boolean matchKeywords = message.getText().contains("<!here>") || message.getText().contains("<!channel>");
-        return !matchKeywords;
+    protected UserHereOrChannelMessageCountProcessor(int limit, UserRegistry users, MessageMatcher matcher) {
+        super(limit, "User @here/@channel Messages Count", users, matcher, "<!here>", "<!channel>");
     }
 
 }
@@ -4,89 +4,117 @@ import com.github.seratch.jslack.api.model.Conversation;
 import com.github.seratch.jslack.api.model.Message;
 import com.github.seratch.jslack.api.model.User;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 /**
+ * Per-day message rates, reported from a TimeSeriesStore of daily counts per user and channel. The main report is
+ * each user's lifetime rate (messages since their first day divided by the days since), and the same store answers the
+ * rolling window reports without going back over any messages.
+ *
  * @author dledmonds
  */
-public class UserMessageCountPerDayProcessor implements ChannelProcessor, MessageProcessor, UserProcessor {
+public class UserMessageCountPerDayProcessor
+        implements ChannelProcessor, MergeableProcessor<TimeSeriesStore>, UserProcessor, SnapshotProcessor,
+        ColumnarExportable, RankedProcessor {
 
-    private final static String ALL_CHANNELS = "@All-Channels@";
 
     protected String title = "User Messages Per Day Count";
-    protected Map<String, Conversation> channelMap = new HashMap<>();
-    protected Map<String, User> userMap = new HashMap<>();
-    protected Map<String, Date> userEarliestMessageMap = new HashMap<>();
-    protected Map<String, UserMessageCountPerDay> userMessagePerDayMap = new HashMap<>();
+    protected Interner<Conversation> channels = new Interner<>();
+    protected UserRegistry users;
+    protected TimeSeriesStore days = new TimeSeriesStore(); // buckets are TimeBuckets days
+    protected TimeBuckets timeBuckets;
     protected int limit;
 
     protected UserMessageCountPerDayProcessor(int limit) {
+        this(limit, ZoneId.systemDefault());
+    }
+
+    /**
+     * @param zone time zone whose calendar days are counted
+     */
+    protected UserMessageCountPerDayProcessor(int limit, ZoneId zone) {
+        this(limit, zone, new UserRegistry());
+    }
+
+    protected UserMessageCountPerDayProcessor(int limit, ZoneId zone, UserRegistry users) {
         this.limit = limit;
-        userMessagePerDayMap.put(ALL_CHANNELS, new UserMessageCountPerDay(ALL_CHANNELS));
+        this.timeBuckets = new TimeBuckets(zone);
+        this.users = users;
     }
 
     protected boolean filterMessage(Message message) {
         return false;
     }
 
+    /**
+     * Only ts and user are counted, subclasses that filter on more must add what they read.
+     */
+    @Override
+    public int messageFields() {
+        return 0;
+    }
+
     @Override
     public void seenChannel(Conversation conversation) {
-        channelMap.put(conversation.getId(), conversation);
+        channels.intern(conversation.getId(), conversation);
     }
 
     @Override
     public void seenUser(User user) {
-        userMap.put(user.getId(), user);
+        users.add(user);
     }
 
     @Override
     public void seenMessage(String channel, Message message) {
-        User user = userMap.get(message.getUser());
-        if (user == null) {
-            System.err.println("Cannot find user " + message.getUser());
-            return;
-        }
+        seenMessage(days, channel, message);
+    }
 
+    @Override
+    public TimeSeriesStore newPartial() {
+        return new TimeSeriesStore();
+    }
+
+    @Override
+    public void seenMessage(TimeSeriesStore partial, String channel, Message message) {
         if (filterMessage(message)) return;
 
-        // track earliest message across all channels
-        Date earliestMsg = userEarliestMessageMap.get(message.getUser());
-        if (earliestMsg == null) {
-            earliestMsg = Utils.convertTsToDate(message.getTs());
-        } else {
-            Date currentMsg = Utils.convertTsToDate(message.getTs());
-            if (currentMsg.getTime() < earliestMsg.getTime()) {
-                earliestMsg = currentMsg;
-            }
-        }
-        userEarliestMessageMap.put(message.getUser(), earliestMsg);
+        // users are only looked up if they make it into the results
+        int user = users.intern(message.getUser());
+        int day = (int)timeBuckets.day(SlackTs.parseMicros(message.getTs()));
+        partial.add(user, channels.intern(channel), day, 1);
+    }
 
-        // store details per channel
-        UserMessageCountPerDay umc = userMessagePerDayMap.get(channel);
-        if (umc == null) {
-            umc = new UserMessageCountPerDay(channel);
-            userMessagePerDayMap.put(channel, umc);
-        }
-        umc.seenMessageForUser(message.getUser());
+    @Override
+    public void merge(TimeSeriesStore partial) {
+        days.merge(partial);
+    }
 
-        // store detail summary for all channels
-        umc = userMessagePerDayMap.get(ALL_CHANNELS);
-        umc.seenMessageForUser(message.getUser());
+    TimeSeriesStore getTimeSeries() {
+        return days;
     }
 
+    /**
+     * Lifetime rates, each user's messages divided by the days since their first message in any channel.
+     */
     public void outputResults(OutputStream out) throws IOException {
+        outputResults(out, 0);
+    }
+
+    /**
+     * @param windowDays rates over this many days up to and including today, or 0 for lifetime rates
+     */
+    public void outputResults(OutputStream out, int windowDays) throws IOException {
         PrintStream ps = null;
         if (out instanceof PrintStream) {
             ps = (PrintStream)out;
@@ -94,57 +122,130 @@ public class UserMessageCountPerDayProcessor implements ChannelProcessor, Messag
             ps = new PrintStream(out);
         }
 
-        for (Entry<String, UserMessageCountPerDay> entry : userMessagePerDayMap.entrySet()) {
-            entry.getValue().outputResults(ps);
+        outputResults(ps, -1, windowDays);
+        for (int channel = 0; channel < days.channelCount(); channel++) {
+            outputResults(ps, channel, windowDays);
         }
     }
 
-    class UserMessageCountPerDay {
-        private String channelId;
-        private Map<String, Double> userMessagesMap = new HashMap<>();
+    /**
+     * Lifetime rates, as outputResults(out).
+     */
+    @Override
+    public void addRankings(ResultSnapshot.Builder snapshot, String name, int depth) {
+        addRankings(snapshot, name, depth, 0);
+    }
 
-        UserMessageCountPerDay(String channelId) {
-            this.channelId = channelId;
+    /**
+     * @param windowDays rates over this many days up to and including today, or 0 for lifetime rates
+     */
+    public void addRankings(ResultSnapshot.Builder snapshot, String name, int depth, int windowDays) {
+        int today = today();
+        for (int channel = -1; channel < days.channelCount(); channel++) {
+            TopK top = top(channel, windowDays, today, depth);
+            if (top.size() == 0 && channel >= 0) continue;
+            List<ResultSnapshot.Entry> entries = new ArrayList<>(top.size());
+            for (int rank = 0; rank < top.size(); rank++) {
+                int user = top.item(rank);
+                entries.add(ResultSnapshot.Entry.of(users, user, top.score(rank), windowDays > 0
+                        ? days.count(user, channel, today - windowDays + 1, today + 1) : days.total(user, channel)));
+            }
+            snapshot.add(name, title + (windowDays > 0 ? " (last " + windowDays + " days)" : ""),
+                    channel < 0 ? ResultSnapshot.ALL_CHANNELS : channels.idOf(channel),
+                    channelName(channel), entries);
         }
+    }
+
+    private int today() {
+        return (int)timeBuckets.day(System.currentTimeMillis() * 1000);
+    }
+
+    /**
+     * @return the k users with the highest rates in the channel (-1 for all channels), sorted and looked up
+     */
+    private TopK top(int channel, int windowDays, int today, int k) {
+        TopK top = Utils.topUsers(users, k);
+        days.forEachUser(channel, user -> {
+            if (windowDays > 0) {
+                double rate = days.rate(user, channel, today - windowDays + 1, today + 1);
+                if (rate > 0) top.offer(user, rate);
+            } else {
+                // post process values to create a value per day concept
+                long daysBetween = today - days.firstBucket(user, -1);
+                top.offer(user, daysBetween < 1 ? 0 : (double)days.total(user, channel) / daysBetween);
+            }
+        });
+        return Utils.rankUsers(users, top);
+    }
 
-        void seenMessageForUser(String username) {
-            Double count = userMessagesMap.get(username);
-            if (count == null) count = new Double(0);
-            userMessagesMap.put(username, ++count);
+    private void outputResults(PrintStream ps, int channel, int windowDays) {
+        int today = today();
+        TopK top = top(channel, windowDays, today, limit);
+        if (top.size() == 0 && (channel >= 0 || windowDays > 0)) return; // nothing to report
+
+        ps.println();
+        ps.println(title + (windowDays > 0 ? " (last " + windowDays + " days)" : "") + " - "
+                + channelName(channel));
+        ps.println("----------------------------------------");
+        for (int rank = 0; rank < top.size(); rank++) {
+            int user = top.item(rank);
+            ps.println(String.format("%.2f", top.score(rank))
+                    + "," + Utils.userDetails(users, user)
+                    + "," + (windowDays > 0
+                            ? days.count(user, channel, today - windowDays + 1, today + 1)
+                            : LocalDate.ofEpochDay(days.firstBucket(user, -1))));
         }
+    }
 
-        void outputResults(PrintStream ps) {
-            // post process values to create a value per day concept
-            long now = System.currentTimeMillis();
-            for (Entry<String, Double> entry : userMessagesMap.entrySet()) {
-                Date earliestMsg = userEarliestMessageMap.get(entry.getKey());
-                long daysBetween = TimeUnit.DAYS.convert(now - earliestMsg.getTime(), TimeUnit.MILLISECONDS);
-                entry.setValue(daysBetween < 1 ? 0 : entry.getValue() / daysBetween);
+    @Override
+    public void writeSnapshot(OutputStream out) throws IOException {
+        PrintStream ps = new PrintStream(out, false, "UTF-8");
+        days.forEachBucket((user, channel, day, count) ->
+                ps.println("D\t" + channels.idOf(channel) + "\t" + users.idOf(user) + "\t" + day + "\t" + count));
+        ps.flush();
+    }
+
+    /**
+     * One row per user per channel per day they posted on, days as epoch days in the processor's time zone.
+     */
+    @Override
+    public void exportColumns(ColumnarWriter writer, String name) throws IOException {
+        ColumnarWriter.Table table = writer.table(name, new String[] {"channel", "user", "day", "messages"},
+                new ColumnarWriter.Type[] {ColumnarWriter.Type.CHANNEL, ColumnarWriter.Type.USER, ColumnarWriter.Type.DAY,
+                        ColumnarWriter.Type.COUNT});
+        try {
+            // a channel at a time and by day within it, so the channel runs are long and the day deltas small
+            for (int channel = 0; channel < days.channelCount(); channel++) {
+                int[] column = {-1}; // dictionary index, only added once the channel has a row
+                days.forEachBucket(channel, (user, c, day, count) -> {
+                    if (column[0] < 0) column[0] = writer.channel(channels.idOf(c), channels.get(c));
+                    table.set(0, column[0]);
+                    table.set(1, writer.user(users, user));
+                    table.set(2, day);
+                    table.set(3, count);
+                    table.endRow();
+                });
             }
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
 
-            boolean order = false; // for asc or desc
-            List<Entry<String, Double>> list = new LinkedList<>(userMessagesMap.entrySet());
-            list.sort((o1, o2) -> order ? o1.getValue().compareTo(o2.getValue()) == 0
-                    ? o1.getKey().compareTo(o2.getKey())
-                    : o1.getValue().compareTo(o2.getValue()) : o2.getValue().compareTo(o1.getValue()) == 0
-                    ? o2.getKey().compareTo(o1.getKey())
-                    : o2.getValue().compareTo(o1.getValue()));
-            Map<String, Double> sortedMap = list.stream().collect(Collectors.toMap(Entry::getKey, Entry::getValue, (a, b) -> b, LinkedHashMap::new));
-
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd");
-            ps.println();
-            ps.println(title + " - " +
-                    (channelId.equals(ALL_CHANNELS) ? "All Channels" : channelMap.get(channelId).getName()));
-            ps.println("----------------------------------------");
-            int loop = 0;
-            for (Entry<String, Double> entry : sortedMap.entrySet()) {
-                ps.println(String.format("%.2f", entry.getValue())
-                        + "," + userMap.get(entry.getKey()).getName()
-                        + "," + userMap.get(entry.getKey()).getRealName()
-                        + "," + df.format(userEarliestMessageMap.get(entry.getKey())));
-                if (++loop >= limit) return;
+    @Override
+    public void readSnapshot(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t");
+            if (fields[0].equals("D") && fields.length == 5) {
+                days.add(users.intern(fields[2]), channels.intern(fields[1]), Integer.parseInt(fields[3]),
+                        Long.parseLong(fields[4]));
             }
         }
     }
 
+    private String channelName(int channel) {
+        return channel < 0 ? "All Channels" : Utils.channelName(channels, channels.idOf(channel));
+    }
+
 }
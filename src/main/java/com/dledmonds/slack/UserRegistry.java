@@ -0,0 +1,105 @@
+package com.dledmonds.slack;
+
+import com.github.seratch.jslack.api.methods.SlackApiException;
+import com.github.seratch.jslack.api.model.User;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The one user directory shared by every processor. Any user id can be interned as messages arrive, and the User
+ * behind it is only looked up (through the resolver) when something actually needs their details, so runs over a few
+ * channels never have to load the whole workspace. Safe to share with dispatch threads.
+ *
+ * @author dledmonds
+ */
+public class UserRegistry {
+
+    private final Interner<User> users = new Interner<>();
+    private final Set<String> unresolvable = ConcurrentHashMap.newKeySet();
+    private volatile Resolver resolver;
+
+    /**
+     * How unknown ids are looked up. Without one, only users added directly are ever known.
+     */
+    void setResolver(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    void add(User user) {
+        users.intern(user.getId(), user);
+    }
+
+    /**
+     * @return the index for the id, assigning one if it hasn't been seen before
+     */
+    int intern(String id) {
+        return users.intern(id);
+    }
+
+    /**
+     * @return the index for the id, or -1 if it has never been interned
+     */
+    int indexOf(String id) {
+        return users.indexOf(id);
+    }
+
+    String idOf(int user) {
+        return users.idOf(user);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    /**
+     * @return the user, looking them up if needed, or null if they can't be found
+     */
+    User get(int user) {
+        User u = users.get(user);
+        if (u != null) return u;
+        resolve(user);
+        return users.get(user);
+    }
+
+    /**
+     * @return the user if they are already known, never looking them up
+     */
+    User peek(int user) {
+        return users.get(user);
+    }
+
+    /**
+     * Hands every user in the list that isn't known yet to the resolver in one call. Ids the resolver looked up but
+     * couldn't find are not asked for again, a lookup that failed is retried the next time they are resolved.
+     */
+    void resolve(int ... indexes) {
+        Resolver r = resolver;
+        if (r == null) return;
+        Set<String> ids = new LinkedHashSet<>();
+        for (int user : indexes) {
+            String id = users.idOf(user);
+            if (users.get(user) == null && !unresolvable.contains(id)) ids.add(id);
+        }
+        if (ids.isEmpty()) return;
+        try {
+            for (User user : r.resolve(ids)) {
+                add(user);
+            }
+        } catch (IOException | SlackApiException e) {
+            System.err.println("Unable to look up users " + ids + ": " + e);
+            return; // may work next time
+        }
+        for (String id : ids) {
+            if (users.get(users.indexOf(id)) == null) unresolvable.add(id);
+        }
+    }
+
+    interface Resolver {
+        List<User> resolve(Set<String> ids) throws IOException, SlackApiException;
+    }
+
+}
@@ -1,5 +1,13 @@
 package com.dledmonds.slack;
 
+import com.github.seratch.jslack.api.model.Conversation;
+import com.github.seratch.jslack.api.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
 
 /**
@@ -8,9 +16,61 @@ import java.util.Date;
 public class Utils {
 
     public static Date convertTsToDate(String strTs) {
-        double ts = Double.parseDouble(strTs);
-        Date date = new Date((long)(Math.floor(ts) * 1000));
-        return date;
+        long micros = SlackTs.parseMicros(strTs);
+        return new Date(SlackTs.toMillis(micros - micros % 1000000)); // whole seconds, as before
+    }
+
+    /**
+     * Writes to a temporary file alongside the target and renames it into place, so readers never see a partial file.
+     */
+    public static void writeAtomically(File file, StreamWriter writer) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp.toPath())) {
+                writer.write(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return an empty ranking of k users, equal scores ordered by user id descending as every report has always done
+     */
+    static TopK topUsers(UserRegistry users, int k) {
+        return new TopK(k, (u1, u2) -> users.idOf(u2).compareTo(users.idOf(u1)));
+    }
+
+    /**
+     * Sorts the ranking and looks up its users in one batch, ready for userDetails.
+     */
+    static TopK rankUsers(UserRegistry users, TopK top) {
+        top.sort();
+        users.resolve(top.items());
+        return top;
+    }
+
+    /**
+     * @return the channel's name, or its id if it was never seen
+     */
+    static String channelName(Interner<Conversation> channels, String channelId) {
+        int channel = channels.indexOf(channelId);
+        Conversation conversation = channel < 0 ? null : channels.get(channel);
+        return conversation == null ? channelId : conversation.getName();
+    }
+
+    /**
+     * @return name,real name as reports list users, id, if they can't be found
+     */
+    static String userDetails(UserRegistry users, int user) {
+        User u = users.get(user);
+        return u == null ? users.idOf(user) + "," : u.getName() + "," + u.getRealName();
+    }
+
+    public interface StreamWriter {
+        void write(OutputStream out) throws IOException;
     }
 
 }